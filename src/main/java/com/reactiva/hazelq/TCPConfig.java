@@ -157,7 +157,7 @@ public class TCPConfig {
 	@DependsOn({"codec"})
 	ResponseConvertorHandler encoder() throws Exception
 	{
-		return new ResponseConvertorHandler(codec(),useByteBuf);
+		return new ResponseConvertorHandler(codec());
 	}
 	@Bean
 	HQCodecWrapper codec()
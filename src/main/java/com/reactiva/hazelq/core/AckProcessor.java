@@ -0,0 +1,79 @@
+/* ============================================================================
+*
+* FILE: AckProcessor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import com.reactiva.hazelq.grid.DeleteEntryProcessor;
+/**
+ * Removes acknowledged messages, releasing their off-heap payloads on the owner and 
+ * the backup, so that the segments can be compacted without waiting for a garbage collection.
+ */
+class AckProcessor extends DeleteEntryProcessor<QID, QMessage> implements IdentifiedDataSerializable {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public Object process(Entry<QID, QMessage> entry) {
+    QMessage m = entry.getValue();
+    if(m != null)
+    {
+      m.releaseOffHeap();
+    }
+    return super.process(entry);
+  }
+
+  @Override
+  public void writeData(ObjectDataOutput out) throws IOException {
+    
+  }
+
+  @Override
+  public void readData(ObjectDataInput in) throws IOException {
+    
+  }
+
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+
+  @Override
+  public int getId() {
+    return QSerializableFactory.ACK_PROCESSOR;
+  }
+
+}
@@ -0,0 +1,70 @@
+/* ============================================================================
+*
+* FILE: BatchFailedException.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.reactiva.hazelq.Message;
+/**
+ * Thrown by a {@linkplain BatchQueueListener} on partial failure of a batch. Only the 
+ * failed messages are redelivered, while the rest of the batch is acknowledged.
+ */
+public class BatchFailedException extends Exception {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+  private final List<Message> failed;
+  /**
+   * 
+   * @param msg
+   * @param failed the messages, from the batch, to be redelivered
+   */
+  public BatchFailedException(String msg, Collection<Message> failed) {
+    super(msg);
+    this.failed = new ArrayList<>(failed);
+  }
+  /**
+   * 
+   * @param msg
+   * @param failed the messages, from the batch, to be redelivered
+   * @param cause
+   */
+  public BatchFailedException(String msg, Collection<Message> failed, Throwable cause) {
+    this(msg, failed);
+    initCause(cause);
+  }
+  public List<Message> getFailed() {
+    return failed;
+  }
+
+}
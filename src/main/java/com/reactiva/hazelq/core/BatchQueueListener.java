@@ -0,0 +1,75 @@
+/* ============================================================================
+*
+* FILE: BatchQueueListener.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.reactiva.hazelq.Message;
+/**
+ * Abstract base class to be extended for listeners consuming messages in batches. 
+ * A batch is dispatched once {@linkplain #maxBatchSize() full}, or once the first message
+ * in it has waited for {@linkplain #maxLingerMillis() linger} time. The batch is 
+ * acknowledged in bulk on a normal return. To redeliver only some of the messages, 
+ * throw a {@linkplain BatchFailedException} with the failed ones; any other exception
+ * redelivers the whole batch.
+ * @see IQueueService#registerListener(QueueListener, String)
+ */
+public abstract class BatchQueueListener extends QueueListener {
+
+  /**
+   * To be overridden to change the max number of messages in a batch.
+   * @return
+   */
+  public int maxBatchSize()
+  {
+    return 100;
+  }
+  /**
+   * To be overridden to change the max time to wait for a batch to fill up.
+   * @return
+   */
+  public long maxLingerMillis()
+  {
+    return 100;
+  }
+  /**
+   * Callback method invoked with a batch of messages, in queue order.
+   * @param msgs
+   * @throws BatchFailedException to redeliver the failed messages only
+   * @throws Exception to redeliver the batch
+   */
+  protected abstract void onMessages(List<Message> msgs) throws Exception;
+  
+  @Override
+  protected final void onMessage(Message m) throws Exception {
+    onMessages(Collections.singletonList(m));
+  }
+
+}
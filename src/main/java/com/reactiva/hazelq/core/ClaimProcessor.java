@@ -0,0 +1,98 @@
+/* ============================================================================
+*
+* FILE: ClaimProcessor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.AbstractEntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+/**
+ * Hands out a message to a consumer, without removing it from the map. The key is 
+ * marked in flight on the owning member, and the message is returned only if it was 
+ * not already in flight. Nothing is written to the entry, hence no backup is needed.
+ */
+class ClaimProcessor extends AbstractEntryProcessor<QID, QMessage> implements IdentifiedDataSerializable, HazelcastInstanceAware {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+  private String queue;
+  private transient HazelcastInstance hzInstance;
+  
+  public ClaimProcessor() {
+    super(false);
+  }
+  ClaimProcessor(String queue) {
+    this();
+    this.queue = queue;
+  }
+
+  @Override
+  public Object process(Entry<QID, QMessage> entry) {
+    QMessage m = entry.getValue();
+    if(m == null)
+      return null;
+    QueueService service = QueueService.of(hzInstance);
+    if(service == null || !service.claimed(queue, entry.getKey()))
+      return null;
+    return m;
+  }
+
+  @Override
+  public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+    this.hzInstance = hazelcastInstance;
+  }
+
+  @Override
+  public void writeData(ObjectDataOutput out) throws IOException {
+    out.writeUTF(queue);
+  }
+
+  @Override
+  public void readData(ObjectDataInput in) throws IOException {
+    queue = in.readUTF();
+  }
+
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+
+  @Override
+  public int getId() {
+    return QSerializableFactory.CLAIM_PROCESSOR;
+  }
+
+}
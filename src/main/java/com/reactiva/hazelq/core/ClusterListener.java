@@ -125,8 +125,18 @@ class ClusterListener implements MigrationListener, PartitionLostListener, Membe
   {
     log.debug("Invoking MigratedEntryProcessors. Migration detected for partition => "+migrationevent.getPartitionId());
     if (migrationevent.getNewOwner().localMember()) {
+      for(MQueueImpl q : observers)
+      {
+        q.fireOnMigration(migrationevent.getPartitionId());
+      }
       onIncomingEnd(migrationevent, migrationevent.getPartitionId());
     }
+    else if (migrationevent.getOldOwner() != null && migrationevent.getOldOwner().localMember()) {
+      for(MQueueImpl q : observers)
+      {
+        q.fireOnMigrationOut(migrationevent.getPartitionId());
+      }
+    }
     
   }
 
@@ -0,0 +1,45 @@
+/* ============================================================================
+*
+* FILE: ExecutionMode.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+/**
+ * How the {@linkplain QueueListener#concurrency() concurrency} of a listener is run.
+ */
+public enum ExecutionMode {
+
+  /**
+   * On the shared fork join pool. Suited to CPU bound listeners.
+   */
+  PLATFORM,
+  /**
+   * Each unit of concurrency on its own virtual thread, if supported by the JVM (21+). 
+   * Suited to listeners blocking on I/O, with a concurrency in the thousands. Falls back
+   * to a dedicated platform thread per unit otherwise.
+   */
+  VIRTUAL
+}
@@ -28,6 +28,8 @@ SOFTWARE.
 */
 package com.reactiva.hazelq.core;
 
+import java.util.Collection;
+
 import com.reactiva.hazelq.Message;
 
 public interface IQueueService {
@@ -44,6 +46,15 @@ public interface IQueueService {
    * @param q
    */
   void registerListener(QueueListener ql, String q);
+  
+  /**
+   * Unregister a listener from a given queue. Messages prefetched for the listener, 
+   * and not yet dispatched, are returned to the queue.
+   * @param ql
+   * @param q
+   * @return true if the listener was registered
+   */
+  boolean unregisterListener(QueueListener ql, String q);
 
   /**
    * Adds a new message to queue.
@@ -51,6 +62,15 @@ public interface IQueueService {
    * @return
    */
   boolean add(Message msg);
+  
+  /**
+   * Adds a batch of messages to their respective queues. Prefer this over repeated
+   * {@link #add(Message)} for bursts, as the keys are reserved and the messages written
+   * in bulk.
+   * @param msgs
+   * @return
+   */
+  boolean addAll(Collection<Message> msgs);
 
   /**
    * 
@@ -0,0 +1,93 @@
+/* ============================================================================
+*
+* FILE: InFlightTable.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+/**
+ * Messages of a queue that have been handed to a consumer and not yet acknowledged,
+ * kept on the member owning their partition. Only the key and a visibility deadline 
+ * is held; the message itself stays in the queue map till it is acknowledged.
+ * All the mutations happen on the partition thread of the key, from entry processors.
+ */
+class InFlightTable {
+
+  private final ConcurrentMap<QID, Long> deadlines = new ConcurrentHashMap<>();
+  /**
+   * Mark a key as in flight.
+   * @param key
+   * @param deadline epoch millis after which the message will be redelivered
+   * @return false if the key is already in flight with another consumer
+   */
+  boolean claim(QID key, long deadline)
+  {
+    return deadlines.putIfAbsent(key, deadline) == null;
+  }
+  /**
+   * Remove a key, on acknowledgement or redelivery.
+   * @param key
+   * @return true if the key was in flight
+   */
+  boolean release(QID key)
+  {
+    return deadlines.remove(key) != null;
+  }
+  /**
+   * 
+   * @param key
+   * @return true if the key is in flight
+   */
+  boolean contains(QID key)
+  {
+    return deadlines.containsKey(key);
+  }
+  /**
+   * Keys whose visibility deadline has passed. They are left in the table, to be 
+   * released by the redelivery.
+   * @param now
+   * @return
+   */
+  List<QID> expired(long now)
+  {
+    List<QID> keys = new ArrayList<>();
+    for(Entry<QID, Long> e : deadlines.entrySet())
+    {
+      if(e.getValue() <= now)
+        keys.add(e.getKey());
+    }
+    return keys;
+  }
+  int size()
+  {
+    return deadlines.size();
+  }
+}
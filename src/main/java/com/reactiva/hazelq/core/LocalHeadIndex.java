@@ -0,0 +1,103 @@
+/* ============================================================================
+*
+* FILE: LocalHeadIndex.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+/**
+ * Ordered index of the queue keys held in the partitions owned by this member.
+ * The index is fed by the local map entry events, so it only ever contains keys
+ * which can be removed without a remote call. Consumers claim the smallest key
+ * with {@link #claim()}, which is a lock free CAS on the underlying skip list. 
+ * <p>
+ * A key present in the index is only a candidate. The actual claim of the message
+ * is marking it in flight, by a {@link ClaimProcessor} on the owning partition. The
+ * entry stays in the IMap till the message is acknowledged.
+ */
+class LocalHeadIndex {
+
+  private final ConcurrentSkipListSet<QID> keys = new ConcurrentSkipListSet<>();
+  /**
+   * 
+   * @param key
+   * @return
+   */
+  boolean add(QID key)
+  {
+    return keys.add(key);
+  }
+  /**
+   * 
+   * @param all
+   */
+  void addAll(Collection<QID> all)
+  {
+    keys.addAll(all);
+  }
+  /**
+   * 
+   * @param key
+   * @return
+   */
+  boolean remove(QID key)
+  {
+    return keys.remove(key);
+  }
+  /**
+   * Atomically remove and return the smallest key, or null if empty.
+   * @return
+   */
+  QID claim()
+  {
+    return keys.pollFirst();
+  }
+  /**
+   * The smallest key, without removing it. Null if empty.
+   * @return
+   */
+  QID first()
+  {
+    try {
+      return keys.first();
+    } catch (NoSuchElementException e) {
+      return null;
+    }
+  }
+  
+  boolean isEmpty()
+  {
+    return keys.isEmpty();
+  }
+  
+  void clear()
+  {
+    keys.clear();
+  }
+}
@@ -28,6 +28,7 @@ SOFTWARE.
 */
 package com.reactiva.hazelq.core;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -63,5 +64,17 @@ public interface MQueue {
    * @throws InterruptedException
    */
   MessageAndKey poll(long timeout, TimeUnit unit) throws InterruptedException;
+  /**
+   * Claim up to max messages, in order, and add them to the given list. Waits up to the
+   * given timeout only if no message is available at all. The messages remain in flight
+   * till acknowledged.
+   * @param sink
+   * @param max
+   * @param timeout
+   * @param unit
+   * @return number of messages added
+   * @throws InterruptedException
+   */
+  int drainTo(List<MessageAndKey> sink, int max, long timeout, TimeUnit unit) throws InterruptedException;
 
 }
\ No newline at end of file
@@ -29,10 +29,22 @@ SOFTWARE.
 package com.reactiva.hazelq.core;
 
 import java.io.Closeable;
-import java.util.TreeSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,15 +52,22 @@ import org.springframework.util.Assert;
 
 import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.ILock;
 import com.hazelcast.core.IMap;
 import com.hazelcast.core.ISet;
 import com.hazelcast.core.ItemEvent;
 import com.hazelcast.core.ItemListener;
+import com.hazelcast.core.Member;
 import com.reactiva.hazelq.grid.AbstractLocalMapEntryListener;
 import com.reactiva.hazelq.utils.Synchronizer;
 /**
- * 
+ * A distributed queue over a partitioned IMap. Each member tracks the keys of its own
+ * partitions in a {@linkplain LocalHeadIndex}, and consumers claim heads from that index
+ * without any cluster wide lock. Only when the local index is empty, a consumer would 
+ * try to claim one of the heads published by the other members in the head set.
+ * <p>
+ * A claimed message stays in the map, and is marked in flight on the owning member 
+ * till it is acknowledged. If not acknowledged within the visibility timeout, it is
+ * redelivered.
  *
  * @param <E>
  */
@@ -59,12 +78,24 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   private final String queueName;
   
   
-  private ILock qLock;
   private ISet<QID> headSet;
   private final IMap<QID, QMessage> qMap;
   
-  private IMap<QID, QMessage> qMap2;
+  private InFlightTable inFlight;
+  private Executor executor;
   
+  private final LocalHeadIndex localHeads = new LocalHeadIndex();
+  /**
+   * Keys held in the local partitions, by partition. Maintained along with the local heads, 
+   * so that the keys of a partition migrating out are known without a scan.
+   */
+  private final ConcurrentMap<Integer, Set<QID>> partitionKeys = new ConcurrentHashMap<>();
+  /**
+   * Partitions migrated in, whose keys are yet to be indexed.
+   */
+  private final Set<Integer> migratedIn = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean indexing = new AtomicBoolean();
+  private final AtomicReference<QID> publishedHead = new AtomicReference<>();
   /**
    * 
    * @param hzService
@@ -73,32 +104,43 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   public MQueueImpl(HazelcastInstance hzService, String queueName) {
     super(hzService);
     this.queueName = queueName;
-    qLock = hzService.getLock(queueName);
     headSet = hzService.getSet(queueName);
-    qMap = hzService.getMap(queueName);
-    qMap2 = hzService.getMap(queueName+QueueService.QMAP_SUFFIX);
+    qMap = hzService.getMap(mapName(queueName));
     
     headSet.addItemListener(new ItemListener<QID>() {
       
       @Override
       public void itemRemoved(ItemEvent<QID> item) {
-        
+        //the published head was taken by a remote claimer, publish it again in case the claim fails
+        if(publishedHead.compareAndSet(item.getItem(), null))
+          addHead();
       }
       
       @Override
       public void itemAdded(ItemEvent<QID> item) {
-        synchronized (mutex) {
-          mutex.notifyAll();
-        }
+        waiters.signal();
         
       }
-    }, false);
+    }, true);
     
     
     register();
     
   }
 
+  /**
+   * Prefix of the map names backing queues, so that the queue maps can be configured by 
+   * the pattern <i>hq.q.*</i>.
+   */
+  static final String MAP_PREFIX = "hq.q.";
+  /**
+   * 
+   * @param queueName
+   * @return name of the map holding the queue
+   */
+  static String mapName(String queueName) {
+    return MAP_PREFIX + queueName;
+  }
   public IMap<QID, QMessage> getqMap() {
     return qMap;
   }
@@ -113,6 +155,7 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
 
   /* (non-Javadoc)
    * @see com.reactiva.hazelq.core.MQueue#size()
+   * Includes the messages in flight.
    */
   @Override
   public int size() {
@@ -121,11 +164,14 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
 
   @Override
   public String keyspace() {
-    return queueName;
+    return qMap.getName();
   }
 
   @Override
   public void entryAdded(EntryEvent<QID, QMessage> event) {
+    indexKey(partitionOf(event.getKey()), event.getKey());
+    localHeads.add(event.getKey());
+    waiters.signal();
     addHead();
   }
   void pause()
@@ -136,27 +182,30 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   {
     pauseSignalled.compareAndSet(true, false);
   }
-  private void qLockUninterruptibly()
+  /**
+   * Handoff statistics of consumers woken up on new heads.
+   * @return
+   */
+  String getWakeupStats()
   {
-    boolean interrupted = false;
-    try {
-      while(!qLock.tryLock(100, TimeUnit.MILLISECONDS));
-    } catch (InterruptedException e1) {
-      interrupted = true;
-    }
-    if (interrupted) {
-      Thread.currentThread().interrupt();
-    }
+    return waiters.toString();
   }
-  //synchronized block
+  /**
+   * Publish the smallest local key to the head set, so that consumers on other
+   * members can claim it. The previously published head is withdrawn.
+   * @return
+   */
   private boolean addHead0()
   {
     if(pauseSignalled.get())
       return false;
-    TreeSet<QID> set = new TreeSet<>();
-    set.addAll(qMap.localKeySet());
-    if (!set.isEmpty()) {
-      QID next = set.first();
+    QID next = localHeads.first();
+    if (next != null) {
+      QID prev = publishedHead.getAndSet(next);
+      if(next.equals(prev))
+        return false;
+      if(prev != null)
+        headSet.remove(prev);
       return headSet.add(next);
     }
     return false;
@@ -169,7 +218,6 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
       sync.end();
       return false;
     }
-    qLockUninterruptibly();
     try 
     {
       return addHead0();
@@ -179,7 +227,6 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
     }
     finally
     {
-      qUnlock();
       sync.end();
     }
     
@@ -188,31 +235,55 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
 
   @Override
   public void entryRemoved(EntryEvent<QID, QMessage> event) {
+    inFlight.release(event.getKey());
+    localHeads.remove(event.getKey());
+    Set<QID> keys = partitionKeys.get(partitionOf(event.getKey()));
+    if(keys != null)
+      keys.remove(event.getKey());
+    if(publishedHead.compareAndSet(event.getKey(), null))
+    {
+      headSet.remove(event.getKey());
+    }
     addHead();
   }
-
-  private QID removeHead() throws InterruptedException
+  /**
+   * Claim the next head. The local index is tried first, which is a CAS on an in
+   * memory skip list. A cross member claim is attempted only if there are no local keys.
+   * @return
+   */
+  private QID removeHead()
   {
     if(!hzService.getLifecycleService().isRunning())
       return null;
-    qLockUninterruptibly();
-    try 
+    if(pauseSignalled.get())
+      return null;
+    
+    QID head = localHeads.claim();
+    if(head == null)
     {
-      if(pauseSignalled.get())
-        return null;
-      TreeSet<QID> set = new TreeSet<>(headSet);
-      if(!set.isEmpty()){
-        QID head = set.first();
-        if(headSet.remove(head)){
-          return head;
-        }
-      }
-    } finally {
-      qUnlock();
+      head = claimRemoteHead();
     }
-    return null;
+    return head;
     
   }
+  /**
+   * The head set holds at most one published head per member, so a scan for the 
+   * smallest is inexpensive. Removal from the set is the claim.
+   * @return
+   */
+  private QID claimRemoteHead()
+  {
+    QID head = null;
+    for(QID id : headSet)
+    {
+      if(head == null || id.compareTo(head) < 0)
+        head = id;
+    }
+    if(head != null && headSet.remove(head)){
+      return head;
+    }
+    return null;
+  }
   
   /* (non-Javadoc)
    * @see com.reactiva.hazelq.core.MQueue#add(com.reactiva.hazelq.core.QMessage)
@@ -229,6 +300,30 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
     }
     return false;
   }
+  /**
+   * Add a batch of messages. The keys are reserved in a single step and the entries
+   * are written with one bulk put, which is split per owning partition by the IMap.
+   * @param items
+   * @return
+   */
+  public boolean addAll(Collection<QMessage> items) {
+    if(items.isEmpty())
+      return false;
+    try 
+    {
+      Iterator<UUID> uids = uidGen.getNextUIDs(items.size()).iterator();
+      Map<QID, QMessage> entries = new HashMap<>(items.size() * 4 / 3 + 1);
+      for(QMessage item : items)
+      {
+        entries.put(new QID(uids.next()), item);
+      }
+      qMap.putAll(entries);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
   /**
    * 
    * @param key
@@ -249,7 +344,7 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   {
     QID key = k != null ? k : removeHead();
     if (key != null) {
-      return read(false, key);
+      return read(key);
     }
     return null;
   }
@@ -262,14 +357,17 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
     QMessage msg = null;
     try 
     {
-      QID mk;
-      synchronized (mutex) 
-      {
-        mk = removeHead();
-        if (mk == null) {
-          mutex.wait(unit.toMillis(timeout));
+      QID mk = removeHead();
+      if (mk == null) {
+        WaiterQueue.Waiter w = waiters.register();
+        try {
+          mk = removeHead();
+          if (mk == null) {
+            waiters.await(w, unit.toNanos(timeout));
+          }
+        } finally {
+          waiters.cancel(w);
         }
-
       }
 
       msg = peek0(mk);
@@ -280,28 +378,87 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
     }
     return msg;
   }
-  void reEnqueueUnprocessed()
+  /**
+   * A key has been marked in flight on this (owner) member. Invoked on the partition
+   * thread, so the head set is updated asynchronously.
+   * @param key
+   */
+  void onClaimed(final QID key)
   {
-    for(QID id : qMap2.localKeySet())
+    localHeads.remove(key);
+    if(publishedHead.compareAndSet(key, null))
     {
-      add(id, qMap2.remove(id));
+      executor.execute(new Runnable() {
+        
+        @Override
+        public void run() {
+          headSet.remove(key);
+          addHead();
+        }
+      });
     }
   }
-  void removeSurrogate(QID key)
+  /**
+   * An in flight key has been returned to the queue on this (owner) member. Invoked on 
+   * the partition thread, so the waiters are signalled asynchronously.
+   * @param key
+   */
+  void onReleased(QID key)
+  {
+    localHeads.add(key);
+    waiters.signal();
+    executor.execute(new Runnable() {
+      
+      @Override
+      public void run() {
+        addHead();
+      }
+    });
+  }
+  /**
+   * Acknowledge an in flight message, removing it from the queue.
+   * @param key
+   */
+  void ack(QID key)
+  {
+    qMap.submitToKey(key, new AckProcessor());
+  }
+  /**
+   * Acknowledge a batch of in flight messages in a single call.
+   * @param keys
+   */
+  void ackAll(Set<QID> keys)
+  {
+    qMap.executeOnKeys(keys, new AckProcessor());
+  }
+  /**
+   * Return an in flight message to the queue.
+   * @param key
+   * @param redelivery whether to increment the redelivery count
+   */
+  void redeliver(QID key, boolean redelivery)
+  {
+    qMap.executeOnKey(key, new RedeliverProcessor(queueName, redelivery));
+  }
+  /**
+   * Return in flight messages, whose visibility timeout has expired, to the queue.
+   * @param keys
+   */
+  void redeliver(Collection<QID> keys)
   {
-    qMap2.removeAsync(key);
+    qMap.executeOnKeys(new HashSet<>(keys), new RedeliverProcessor(queueName, true));
   }
-  private QMessage read(boolean commit, QID key)
+  private QMessage read(QID key)
   {
-    QMessage m = qMap.remove(key);
+    QMessage m = (QMessage) qMap.executeOnKey(key, new ClaimProcessor(queueName));
     if (m != null) {
-      qMap2.set(key, m);
+      m.setDestination(queueName);
     }
 
     return m;
   }
   
-  private final Object mutex = new Object();
+  private final WaiterQueue waiters = new WaiterQueue();
 
   /* (non-Javadoc)
    * @see com.reactiva.hazelq.core.MQueue#poll()
@@ -318,32 +475,34 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   @Override
   public MessageAndKey poll(long timeout, TimeUnit unit) throws InterruptedException {
 
-    QID mk = null;
     MessageAndKey mkey = null;
     try 
     {
-      mk = removeHead();
-      if (mk == null) 
+      mkey = claimNext();
+      if (mkey == null) 
       {
-        synchronized (mutex) 
+        WaiterQueue.Waiter w = waiters.register();
+        try 
         {
-          mk = removeHead();
-          if (mk == null) {
-            if (timeout > 0) {
-              mutex.wait(unit.toMillis(timeout));
-            } else {
-              mutex.wait();
-            } 
+          //claim again once registered, else a signal could be missed
+          mkey = claimNext();
+          if (mkey == null && waiters.await(w, unit.toNanos(timeout))) {
+            mkey = claimNext();
           }
+        } 
+        finally {
+          waiters.cancel(w);
         }
       }
-      mkey = poll0(mk);
     } 
     
+    catch (InterruptedException e) {
+      throw e;
+    }
     catch (Exception e) {
       e.printStackTrace();
     }
-    return mkey;
+    return mkey != null ? mkey : new MessageAndKey(null, null);
   
   }
 
@@ -352,18 +511,10 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
    * @return
    */
   private MessageAndKey pollMessageAndKey()  {
-    QID mk = null;
     MessageAndKey mkey = null;
     try 
     {
-      
-      mk = removeHead();
-      
-      if (mk != null) {
-        mkey = poll0(mk);
-        
-      }
-      
+      mkey = claimNext();
     } 
     
     catch (Exception e) {
@@ -374,15 +525,122 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   
   
   }
-  
-  private MessageAndKey poll0(QID k) throws InterruptedException {
-    QID key = k != null ? k : removeHead();
-    if (key != null) {
-      return new MessageAndKey(key, read(true, key));
+  /**
+   * Claim heads till a message could be marked in flight. A head can be lost
+   * to a consumer on another member, in which case the claim would return null.
+   * @return the claimed message, or null if there are no more heads
+   */
+  private MessageAndKey claimNext() {
+    QID key;
+    while((key = removeHead()) != null)
+    {
+      QMessage m;
+      try {
+        m = read(key);
+      } catch (RuntimeException e) {
+        returnHeads(Collections.singleton(key));
+        throw e;
+      }
+      if(m != null)
+        return new MessageAndKey(key, m);
     }
-    return new MessageAndKey(null, null);
+    return null;
   }
 
+  /* (non-Javadoc)
+   * @see com.reactiva.hazelq.core.MQueue#drainTo(java.util.List, int, long, java.util.concurrent.TimeUnit)
+   */
+  @Override
+  public int drainTo(List<MessageAndKey> sink, int max, long timeout, TimeUnit unit) throws InterruptedException {
+    int n = 0;
+    if(max <= 0)
+      return 0;
+    try 
+    {
+      n = drainNext(sink, max);
+      if (n == 0) 
+      {
+        WaiterQueue.Waiter w = waiters.register();
+        try 
+        {
+          n = drainNext(sink, max);
+          if (n == 0 && waiters.await(w, unit.toNanos(timeout))) {
+            n = drainNext(sink, max);
+          }
+        } 
+        finally {
+          waiters.cancel(w);
+        }
+      }
+    } 
+    catch (InterruptedException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      log.error("["+queueName+"] Unable to drain messages", e);
+    }
+    return n;
+  }
+  /**
+   * Put back heads that were removed but could not be claimed. Heads of local
+   * partitions go back to the local index, others to the head set.
+   * @param keys
+   */
+  private void returnHeads(Collection<QID> keys)
+  {
+    for(QID k : keys)
+    {
+      Member owner = hzService.getPartitionService().getPartition(k).getOwner();
+      if(owner != null && owner.localMember())
+        localHeads.add(k);
+      else
+        headSet.add(k);
+    }
+  }
+  /**
+   * Claim a run of heads and mark them in flight in one call.
+   * @param sink
+   * @param max
+   * @return
+   */
+  private int drainNext(List<MessageAndKey> sink, int max) {
+    Set<QID> keys = new LinkedHashSet<>();
+    int claimed = 0;
+    do
+    {
+      keys.clear();
+      QID key;
+      while(keys.size() < max && (key = removeHead()) != null)
+      {
+        keys.add(key);
+        if(localHeads.isEmpty())
+          break;
+      }
+      if(keys.isEmpty())
+        return 0;
+      
+      Map<QID, Object> removed;
+      try {
+        removed = qMap.executeOnKeys(keys, new ClaimProcessor(queueName));
+      } catch (RuntimeException e) {
+        returnHeads(keys);
+        throw e;
+      }
+      for(QID k : keys)
+      {
+        QMessage m = (QMessage) removed.get(k);
+        if(m != null)
+        {
+          m.setDestination(queueName);
+          claimed++;
+          sink.add(new MessageAndKey(k, m));
+        }
+      }
+      //all the heads may have been lost to consumers on other members
+    } while(claimed == 0);
+    
+    return claimed;
+  }
   //private final Lock partOpsLock = new ReentrantLock();
   
   public UIDGenerator getUidGen() {
@@ -392,56 +650,190 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   public void setUidGen(UIDGenerator uidGen) {
     this.uidGen = uidGen;
   }
+
+  void setInFlight(InFlightTable inFlight) {
+    this.inFlight = inFlight;
+  }
+
+  void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  private QueueStore store;
   /**
-   * A new entry has migrated into this map
-   * @param partId 
-   * @param key
+   * Local persistence of the map, if enabled.
+   * @param store
    */
-  public void fireOnMigration(int partId) {
+  void setStore(QueueStore store) {
+    this.store = store;
+  }
+  /**
+   * Reload the stored messages of the local partitions.
+   * @return
+   */
+  int reloadStored() {
+    return store != null ? store.reload(qMap) : 0;
+  }
+  /**
+   * Drop the stored messages, which are stale when joining a live cluster.
+   */
+  void discardStored() {
+    if(store != null)
+      store.discard();
+  }
+  /**
+   * Load all the keys owned by this member into the local index. To be invoked once
+   * the queue is created, thereafter the index is maintained incrementally by the entry
+   * events and the migration callbacks.
+   */
+  void loadLocalHeads() {
+    for(QID key : qMap.localKeySet())
+    {
+      indexKey(partitionOf(key), key);
+      //in flight keys are returned on acknowledgement failure or expiry
+      if(!inFlight.contains(key))
+        localHeads.add(key);
+    }
     addHead();
-    log.debug("Handled migration of partition.. "+partId);
   }
-  private final AtomicBoolean pauseSignalled = new AtomicBoolean();
-  private void qUnlock()
+  private void indexKey(int partition, QID key)
   {
-    try {
-      qLock.unlock();
-    } catch (Exception e) {
-      
+    Set<QID> keys = partitionKeys.get(partition);
+    if(keys == null)
+    {
+      Set<QID> s = ConcurrentHashMap.newKeySet();
+      keys = partitionKeys.putIfAbsent(partition, s);
+      if(keys == null)
+        keys = s;
     }
+    keys.add(key);
   }
-  public void fireOnMigrationStart() {
-    qLockUninterruptibly();
-    try
+  private int partitionOf(QID key)
+  {
+    return hzService.getPartitionService().getPartition(key).getPartitionId();
+  }
+  /**
+   * A partition has migrated into this member. Its keys are not known locally, and the map can
+   * only list the keys of all the local partitions. So the partitions migrating in are collected,
+   * and indexed by a single scan of the local keys on the executor; a migration completing while
+   * a scan is pending joins it.
+   * @param partId 
+   */
+  public void fireOnMigration(int partId) {
+    if(store != null)
+      store.beginMigration(partId);
+    migratedIn.add(partId);
+    if(indexing.compareAndSet(false, true))
     {
-      addHead0();
-      try {
-        Assert.isTrue(pauseSignalled.compareAndSet(false, true));
-      } catch (Exception e) {
-        log.warn("Assertion warning", e);
+      executor.execute(new Runnable() {
+        
+        @Override
+        public void run() {
+          indexMigrated();
+        }
+      });
+    }
+  }
+  private void indexMigrated()
+  {
+    indexing.set(false);
+    Set<Integer> parts = new HashSet<>();
+    for(Iterator<Integer> iter = migratedIn.iterator(); iter.hasNext();)
+    {
+      parts.add(iter.next());
+      iter.remove();
+    }
+    if(parts.isEmpty())
+      return;
+    Map<Integer, Set<QID>> migrated = new HashMap<>();
+    for(QID key : qMap.localKeySet())
+    {
+      int p = partitionOf(key);
+      if(parts.contains(p))
+      {
+        indexKey(p, key);
+        localHeads.add(key);
+        Set<QID> keys = migrated.get(p);
+        if(keys == null)
+        {
+          keys = new HashSet<>();
+          migrated.put(p, keys);
+        }
+        keys.add(key);
       }
     }
-    finally
+    if(store != null)
     {
-      qUnlock();
+      for(Integer p : parts)
+      {
+        storeMigrated(p, migrated.get(p));
+      }
     }
-    log.debug("-- Partition migration begin --");
+    addHead();
+    waiters.signalAll();
+    log.debug("Handled migration of partitions.. "+parts);
   }
-  public void fireOnMigrationEnd() {
-    qLockUninterruptibly();
-    try
+  /**
+   * Replace the local file of a partition migrated in. The entries are staged on the partition 
+   * thread, so the values are not copied out of the map. Keys added after the scan are written
+   * by the store meanwhile, which is held till the file is replaced.
+   * @param partId
+   * @param keys
+   */
+  private void storeMigrated(int partId, Set<QID> keys)
+  {
+    try 
     {
-      try {
-        Assert.isTrue(pauseSignalled.compareAndSet(true, false));
-      } catch (Exception e) {
-        log.warn("Assertion warning", e);
-      }
-      addHead0();
+      if(keys != null)
+        qMap.executeOnKeys(keys, new StoreMigratedProcessor(queueName, partId));
+      store.onMigration(partId);
+    } 
+    catch (Exception e) {
+      log.warn("["+queueName+"] Unable to store migrated partition "+partId, e);
+      store.cancelMigration(partId);
     }
-    finally
+  }
+  /**
+   * A partition has migrated out of this member. The keys of that partition are 
+   * dropped from the local index.
+   * @param partId
+   */
+  public void fireOnMigrationOut(final int partId) {
+    migratedIn.remove(partId);
+    Set<QID> keys = partitionKeys.remove(partId);
+    if(keys != null)
     {
-      qUnlock();
+      for(QID key : keys)
+      {
+        localHeads.remove(key);
+        //the new owner will redeliver them
+        inFlight.release(key);
+      }
+    }
+    if(store != null)
+      store.onMigrationOut(partId);
+    addHead();
+    log.debug("Handled migration out of partition.. "+partId);
+  }
+  private final AtomicBoolean pauseSignalled = new AtomicBoolean();
+  
+  public void fireOnMigrationStart() {
+    addHead0();
+    try {
+      Assert.isTrue(pauseSignalled.compareAndSet(false, true));
+    } catch (Exception e) {
+      log.warn("Assertion warning", e);
+    }
+    log.debug("-- Partition migration begin --");
+  }
+  public void fireOnMigrationEnd() {
+    try {
+      Assert.isTrue(pauseSignalled.compareAndSet(true, false));
+    } catch (Exception e) {
+      log.warn("Assertion warning", e);
     }
+    addHead0();
+    waiters.signalAll();
     log.debug("-- Partition migration end --");
     
   }
@@ -452,9 +844,12 @@ class MQueueImpl extends AbstractLocalMapEntryListener<QMessage> implements MQue
   private AtomicBoolean stopping = new AtomicBoolean();
   @Override
   public void close() {
+    removeMapListener();
     sync.begin();
     stopping.compareAndSet(false, true);
     sync.end();
+    waiters.signalAll();
+    log.info("["+queueName+"] Consumer wakeup "+waiters);
   }
     
 }
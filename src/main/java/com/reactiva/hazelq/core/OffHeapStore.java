@@ -0,0 +1,447 @@
+/* ============================================================================
+*
+* FILE: OffHeapStore.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap segments holding message payloads, so that a large backlog does not sit on 
+ * the Java heap. A payload is written into the current segment, and only a small 
+ * {@linkplain Slot} is kept on-heap by the owning {@linkplain QMessage}. 
+ * <p>
+ * Each segment tracks the bytes of its live slots. A slot dies when it is 
+ * {@linkplain #release(Slot) released}, on acknowledgement of the message, or when its message is
+ * garbage collected, as for records replaced or dropped by the grid without notice. A compactor
+ * thread copies the survivors of a segment forward once its live bytes fall below a ratio of 
+ * its size, and then drops the segment. A segment is never written again once full, 
+ * so a reader holding the previous location of a moved payload still reads it intact; the direct
+ * buffer is freed by the garbage collector once no slot refers to it.
+ */
+final class OffHeapStore {
+
+  private static final Logger log = LoggerFactory.getLogger(OffHeapStore.class);
+  private static volatile OffHeapStore instance;
+  /**
+   * The store in use, or null if payloads are to be kept on-heap.
+   * @return
+   */
+  static OffHeapStore get()
+  {
+    return instance;
+  }
+  /**
+   * Enable off-heap payloads for this member.
+   * @param minBytes payloads smaller than this are kept on-heap
+   * @param segmentBytes size of each direct segment
+   * @param compactRatio live fraction of a full segment below which its survivors are moved
+   */
+  static synchronized void configure(int minBytes, int segmentBytes, double compactRatio)
+  {
+    if(instance == null)
+    {
+      instance = new OffHeapStore(minBytes, segmentBytes, compactRatio);
+      instance.start();
+      log.info("Off-heap payload store enabled. Segment size: "+segmentBytes+", threshold: "+minBytes+", compact ratio: "+compactRatio);
+    }
+  }
+  static synchronized void shutdown()
+  {
+    if(instance != null)
+    {
+      instance.stop();
+      instance = null;
+    }
+  }
+  /**
+   * A contiguous direct buffer, appended to till full.
+   */
+  private static final class Segment
+  {
+    final ByteBuffer buffer;
+    final AtomicLong live = new AtomicLong();
+    final Set<SlotRef> slots = Collections.newSetFromMap(new ConcurrentHashMap<SlotRef, Boolean>());
+    Segment(int size) {
+      buffer = ByteBuffer.allocateDirect(size);
+    }
+  }
+  /**
+   * Position of a payload. A moved payload gets a new location, so readers need no lock.
+   */
+  private static final class Location
+  {
+    final Segment segment;
+    final int offset;
+    Location(Segment segment, int offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+  /**
+   * Tracks a slot in its segment, enqueued when the slot is garbage collected.
+   */
+  private static final class SlotRef extends WeakReference<Slot>
+  {
+    final Segment segment;
+    final int length;
+    SlotRef(Slot slot, Segment segment, ReferenceQueue<Slot> queue) {
+      super(slot, queue);
+      this.segment = segment;
+      this.length = slot.length;
+    }
+  }
+  /**
+   * Handle to a payload held off-heap.
+   */
+  static final class Slot
+  {
+    private final int length;
+    private volatile Location at;
+    /*
+     * Guarded by the slot monitor.
+     */
+    private SlotRef ref;
+    private boolean released;
+    private Slot(int length) {
+      this.length = length;
+    }
+    int length()
+    {
+      return length;
+    }
+    private ByteBuffer view()
+    {
+      Location l = at;
+      ByteBuffer dup = l.segment.buffer.duplicate();
+      dup.position(l.offset);
+      dup.limit(l.offset + length);
+      return dup;
+    }
+    byte[] toArray()
+    {
+      byte[] b = new byte[length];
+      view().get(b);
+      return b;
+    }
+    void writeTo(DataOutput out) throws IOException
+    {
+      ByteBuffer dup = view();
+      byte[] chunk = SCRATCH.get();
+      int rem = length;
+      while(rem > 0)
+      {
+        int n = Math.min(rem, chunk.length);
+        dup.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+        rem -= n;
+      }
+    }
+  }
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>(){
+    @Override
+    protected byte[] initialValue() {
+      return new byte[8192];
+    }
+  };
+  
+  private final int minBytes;
+  private final int segmentBytes;
+  private final double compactRatio;
+  private final ReferenceQueue<Slot> cleared = new ReferenceQueue<>();
+  /*
+   * Guarded by this.
+   */
+  private final List<Segment> full = new ArrayList<>();
+  private Segment current;
+  private int position;
+  private volatile Thread compactor;
+  
+  OffHeapStore(int minBytes, int segmentBytes, double compactRatio) {
+    this.minBytes = minBytes;
+    this.segmentBytes = segmentBytes;
+    this.compactRatio = compactRatio;
+  }
+  private void start()
+  {
+    Thread t = new Thread("hq-offheap-compactor"){
+      @Override
+      public void run()
+      {
+        while(compactor == this)
+        {
+          try 
+          {
+            Reference<? extends Slot> r = cleared.remove(1000);
+            if(r != null)
+            {
+              forget((SlotRef) r);
+              drainCleared();
+            }
+            compact();
+          } 
+          catch (InterruptedException e) {
+            break;
+          }
+          catch (Exception e) {
+            log.error("Off-heap compaction failed", e);
+          }
+        }
+      }
+    };
+    t.setDaemon(true);
+    compactor = t;
+    t.start();
+  }
+  private void stop()
+  {
+    Thread t = compactor;
+    compactor = null;
+    if(t != null)
+      t.interrupt();
+  }
+  /**
+   * Whether a payload of given length should be kept off-heap.
+   * @param length
+   * @return
+   */
+  boolean accepts(int length)
+  {
+    return length >= minBytes;
+  }
+  /**
+   * Reserve space for the payload of the slot, rolling to a new segment if it does 
+   * not fit, and track the slot there. The caller holds the slot monitor.
+   * @param slot
+   * @return
+   */
+  private synchronized Location place(Slot slot)
+  {
+    Location l;
+    if(slot.length > segmentBytes)
+    {
+      //oversized payloads get a segment of their own
+      Segment s = new Segment(slot.length);
+      full.add(s);
+      l = new Location(s, 0);
+    }
+    else
+    {
+      if(current == null || position + slot.length > segmentBytes)
+      {
+        if(current != null)
+          full.add(current);
+        current = new Segment(segmentBytes);
+        position = 0;
+      }
+      l = new Location(current, position);
+      position += slot.length;
+    }
+    slot.ref = new SlotRef(slot, l.segment, cleared);
+    l.segment.slots.add(slot.ref);
+    l.segment.live.addAndGet(slot.length);
+    return l;
+  }
+  private static ByteBuffer writable(Location l, int length)
+  {
+    ByteBuffer dup = l.segment.buffer.duplicate();
+    dup.position(l.offset);
+    dup.limit(l.offset + length);
+    return dup;
+  }
+  /**
+   * Copy a payload into off-heap memory.
+   * @param bytes
+   * @return
+   */
+  Slot copy(byte[] bytes)
+  {
+    Slot slot = new Slot(bytes.length);
+    synchronized (slot) {
+      Location l = place(slot);
+      writable(l, bytes.length).put(bytes);
+      slot.at = l;
+    }
+    return slot;
+  }
+  /**
+   * Read a payload straight into off-heap memory, without an on-heap copy.
+   * @param in
+   * @param length
+   * @return
+   * @throws IOException
+   */
+  Slot read(DataInput in, int length) throws IOException
+  {
+    Slot slot = new Slot(length);
+    synchronized (slot) {
+      Location l = place(slot);
+      ByteBuffer dup = writable(l, length);
+      byte[] chunk = SCRATCH.get();
+      int rem = length;
+      while(rem > 0)
+      {
+        int n = Math.min(rem, chunk.length);
+        in.readFully(chunk, 0, n);
+        dup.put(chunk, 0, n);
+        rem -= n;
+      }
+      slot.at = l;
+    }
+    return slot;
+  }
+  /**
+   * Mark the payload as no longer stored. Its bytes stay readable till the slot is 
+   * garbage collected, but are not counted live or moved.
+   * @param slot
+   */
+  void release(Slot slot)
+  {
+    synchronized (slot) {
+      if(slot.released)
+        return;
+      slot.released = true;
+      slot.ref.clear();
+      forget(slot.ref);
+    }
+  }
+  private static void forget(SlotRef ref)
+  {
+    if(ref.segment.slots.remove(ref))
+      ref.segment.live.addAndGet(-ref.length);
+  }
+  void drainCleared()
+  {
+    Reference<? extends Slot> r;
+    while((r = cleared.poll()) != null)
+    {
+      forget((SlotRef) r);
+    }
+  }
+  /**
+   * Copy the payload to the current segment.
+   * @param slot
+   * @return bytes moved
+   */
+  private int move(Slot slot)
+  {
+    synchronized (slot) {
+      if(slot.released)
+        return 0;
+      SlotRef old = slot.ref;
+      ByteBuffer from = slot.view();
+      Location to = place(slot);
+      writable(to, slot.length).put(from);
+      slot.at = to;
+      old.clear();
+      forget(old);
+      return slot.length;
+    }
+  }
+  /**
+   * Drop the full segments without live slots, and move the survivors of those below 
+   * the compaction ratio.
+   */
+  void compact()
+  {
+    List<Segment> sparse = new ArrayList<>();
+    synchronized (this) {
+      for (Iterator<Segment> iter = full.iterator(); iter.hasNext();) {
+        Segment s = iter.next();
+        if(s.slots.isEmpty())
+          iter.remove();
+        else if(s.live.get() < compactRatio * s.buffer.capacity() && s.buffer.capacity() <= segmentBytes)
+          sparse.add(s);
+      }
+    }
+    if(sparse.isEmpty())
+      return;
+    long moved = 0;
+    for(Segment s : sparse)
+    {
+      for(SlotRef ref : s.slots)
+      {
+        Slot slot = ref.get();
+        if(slot != null)
+          moved += move(slot);
+      }
+    }
+    synchronized (this) {
+      for (Iterator<Segment> iter = full.iterator(); iter.hasNext();) {
+        if(iter.next().slots.isEmpty())
+          iter.remove();
+      }
+    }
+    log.debug("Compacted "+sparse.size()+" off-heap segments, moved "+moved+" bytes");
+  }
+  /**
+   * 
+   * @return bytes of the payloads stored
+   */
+  synchronized long getLiveBytes()
+  {
+    long b = current != null ? current.live.get() : 0;
+    for(Segment s : full)
+    {
+      b += s.live.get();
+    }
+    return b;
+  }
+  /**
+   * 
+   * @return direct bytes held by the store
+   */
+  synchronized long getAllocatedBytes()
+  {
+    long b = current != null ? current.buffer.capacity() : 0;
+    for(Segment s : full)
+    {
+      b += s.buffer.capacity();
+    }
+    return b;
+  }
+  @Override
+  public String toString() {
+    return "OffHeapStore [liveBytes=" + getLiveBytes() + ", allocatedBytes=" + getAllocatedBytes() + "]";
+  }
+}
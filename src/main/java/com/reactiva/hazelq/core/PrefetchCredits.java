@@ -0,0 +1,201 @@
+/* ============================================================================
+*
+* FILE: PrefetchCredits.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+/**
+ * Prefetch window of a listener, by count and bytes of messages. Message credits are 
+ * {@linkplain #tryReserve(int) reserved} before a fetch, so concurrent fetches never exceed 
+ * the count. Sizes are known only after a fetch, so each fetched message then 
+ * {@linkplain #take(long) takes} its bytes, and a message that does not fit is handed back. 
+ * Reservations are sized by the average message size seen, so that few are handed back. 
+ * Credits are given back once messages are acknowledged or returned.
+ */
+final class PrefetchCredits {
+
+  private final int maxMessages;
+  private final long maxBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  //written under the lock, volatile for the unlocked reads of the getters
+  /**
+   * Messages reserved or taken.
+   */
+  private volatile int messages;
+  private volatile long bytes;
+  /**
+   * Messages reserved, but not yet taken.
+   */
+  private int reserved;
+  /**
+   * Size of the last message fetched, to estimate the size of a fetch.
+   */
+  private long lastSize;
+  /**
+   * 
+   * @param maxMessages
+   * @param maxBytes
+   */
+  PrefetchCredits(int maxMessages, long maxBytes) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+  }
+  private int available0()
+  {
+    if(bytes >= maxBytes)
+      return 0;
+    int n = Math.max(0, maxMessages - messages);
+    if(n > 0 && lastSize > 0)
+    {
+      long fit = (maxBytes - bytes) / lastSize - reserved;
+      //at least one message into an empty window, whatever its size
+      n = (int) Math.min(n, Math.max(bytes == 0 && reserved == 0 ? 1 : 0, fit));
+    }
+    return n;
+  }
+  private int reserve0(int max)
+  {
+    int n = Math.min(max, available0());
+    messages += n;
+    reserved += n;
+    return n;
+  }
+  /**
+   * 
+   * @return number of messages that can be reserved now
+   */
+  int available()
+  {
+    lock.lock();
+    try {
+      return available0();
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Reserve credits for a fetch, if available.
+   * @param max
+   * @return number of messages reserved, or 0
+   */
+  int tryReserve(int max)
+  {
+    lock.lock();
+    try {
+      return reserve0(max);
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Wait for credits to be available, and reserve them.
+   * @param max
+   * @param timeout
+   * @param unit
+   * @return number of messages reserved, or 0 on timeout
+   * @throws InterruptedException
+   */
+  int reserve(int max, long timeout, TimeUnit unit) throws InterruptedException
+  {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try 
+    {
+      int n;
+      while((n = reserve0(max)) == 0)
+      {
+        if(nanos <= 0)
+          return 0;
+        nanos = released.awaitNanos(nanos);
+      }
+      return n;
+    } 
+    finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Take the bytes of a fetched message, against one reserved credit. The byte limit is 
+   * exceeded only by a single message larger than it.
+   * @param size
+   * @return false if the message does not fit, in which case the credit stays reserved
+   */
+  boolean take(long size)
+  {
+    lock.lock();
+    try 
+    {
+      lastSize = size;
+      if(bytes > 0 && bytes + size > maxBytes)
+        return false;
+      bytes += size;
+      reserved--;
+      return true;
+    } 
+    finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Give back reserved credits that were not taken.
+   * @param count
+   */
+  void unreserve(int count)
+  {
+    if(count <= 0)
+      return;
+    lock.lock();
+    try {
+      messages -= count;
+      reserved -= count;
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+  void release(int count, long size)
+  {
+    lock.lock();
+    try {
+      messages -= count;
+      bytes -= size;
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+  int getMessages() {
+    return messages;
+  }
+  long getBytes() {
+    return bytes;
+  }
+}
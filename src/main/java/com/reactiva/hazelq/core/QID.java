@@ -30,23 +30,34 @@ package com.reactiva.hazelq.core;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.ByteBuffer;
+import java.util.Comparator;
 import java.util.UUID;
 
 import com.hazelcast.nio.ObjectDataInput;
 import com.hazelcast.nio.ObjectDataOutput;
-import com.hazelcast.nio.serialization.DataSerializable;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
 import com.reactiva.hazelq.utils.TimeUIDComparator;
-import com.reactiva.hazelq.utils.TimeUIDGen;
-
-public class QID implements DataSerializable, Serializable, Comparable<QID> {
+/**
+ * A time UUID held as its two 64 bit halves. Compared and serialized directly
+ * on the longs, without going through byte arrays.
+ */
+public class QID implements IdentifiedDataSerializable, Serializable, Comparable<QID> {
 
+  /**
+   * Orders by the time UUID timestamp, then the clock sequence and node.
+   */
+  public static final Comparator<QID> COMPARATOR = new Comparator<QID>() {
+
+    @Override
+    public int compare(QID o1, QID o2) {
+      return TimeUIDComparator.compare(o1.msb, o1.lsb, o2.msb, o2.lsb);
+    }
+  };
+  
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((uid == null) ? 0 : uid.hashCode());
-    return result;
+    long hilo = msb ^ lsb;
+    return ((int) (hilo >> 32)) ^ (int) hilo;
   }
 
   @Override
@@ -58,13 +69,7 @@ public class QID implements DataSerializable, Serializable, Comparable<QID> {
     if (getClass() != obj.getClass())
       return false;
     QID other = (QID) obj;
-    if (uid == null) {
-      if (other.uid != null)
-        return false;
-    } else if (this.compareTo(other) != 0)
-      return false;
-    
-    return true;
+    return msb == other.msb && lsb == other.lsb;
   }
   /**
    * 
@@ -74,41 +79,65 @@ public class QID implements DataSerializable, Serializable, Comparable<QID> {
     super();
     this.setUid(uid);
   }
+  public QID(long msb, long lsb) {
+    super();
+    this.msb = msb;
+    this.lsb = lsb;
+  }
 
   public QID()
   {
     
   }
-  private UUID uid;
+  private long msb;
+  private long lsb;
   @Override
   public void writeData(ObjectDataOutput out) throws IOException {
-    out.writeByteArray(TimeUIDGen.decompose(uid));
-    
+    out.writeLong(msb);
+    out.writeLong(lsb);
   }
 
   @Override
   public void readData(ObjectDataInput in) throws IOException {
-    byte[] bytes = in.readByteArray();
-    setUid(TimeUIDGen.getUUID(ByteBuffer.wrap(bytes)));
-    
+    msb = in.readLong();
+    lsb = in.readLong();
   }
 
   public UUID getUid() {
-    return uid;
+    return new UUID(msb, lsb);
   }
 
   public void setUid(UUID uid) {
-    this.uid = uid;
+    this.msb = uid.getMostSignificantBits();
+    this.lsb = uid.getLeastSignificantBits();
+  }
+
+  public long getMostSignificantBits() {
+    return msb;
+  }
+
+  public long getLeastSignificantBits() {
+    return lsb;
   }
 
   @Override
   public int compareTo(QID other) {
-    return new TimeUIDComparator().compare(this.uid, other.uid);
+    return COMPARATOR.compare(this, other);
   }
 
   @Override
   public String toString() {
-    return "QMessageKey [uid=" + uid + "]";
+    return "QMessageKey [uid=" + getUid() + "]";
+  }
+
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+
+  @Override
+  public int getId() {
+    return QSerializableFactory.QID_TYPE;
   }
 
 
@@ -28,15 +28,25 @@ SOFTWARE.
 */
 package com.reactiva.hazelq.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.hazelcast.nio.ObjectDataInput;
 import com.hazelcast.nio.ObjectDataOutput;
-import com.hazelcast.nio.serialization.DataSerializable;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import com.hazelcast.spi.impl.operationexecutor.classic.PartitionOperationThread;
 import com.reactiva.hazelq.Message;
-
-class QMessage implements DataSerializable {
+/**
+ * The grid value wrapping a {@linkplain Message}. The destination is not serialized, since
+ * it is the name of the map holding the message; it is set back by the queue on read.
+ */
+class QMessage implements IdentifiedDataSerializable {
 
   public QMessage() {
     
@@ -45,8 +55,24 @@ class QMessage implements DataSerializable {
     super();
     this.payload = payload;
   }
+  /**
+   * The message. If its payload is held off-heap, a copy of the message with the payload 
+   * read back on-heap is returned, leaving the stored instance as is.
+   * @return
+   */
   public Message getPayload() {
-    return payload;
+    OffHeapStore.Slot slot = offHeap;
+    if(payload == null || slot == null)
+      return payload;
+    Message copy = new Message();
+    copy.setCorrelationID(payload.getCorrelationID());
+    copy.setReplyTo(payload.getReplyTo());
+    copy.setDestination(payload.getDestination());
+    copy.setExpiryMillis(payload.getExpiryMillis());
+    copy.setTimestamp(payload.getTimestamp());
+    copy.setRedelivered(payload.isRedelivered());
+    copy.setPayload(slot.toArray());
+    return copy;
   }
   
   private AtomicInteger submit = new AtomicInteger(1);
@@ -58,6 +84,7 @@ class QMessage implements DataSerializable {
     this.payload = payload;
   }
   private Message payload;
+  private volatile OffHeapStore.Slot offHeap;
   @Override
   public void writeData(ObjectDataOutput out) throws IOException {
     if(payload == null)
@@ -68,11 +95,24 @@ class QMessage implements DataSerializable {
     {
       out.writeBoolean(true);
       out.writeUTF(payload.getCorrelationID());
-      out.writeUTF(payload.getDestination());
       out.writeUTF(payload.getReplyTo());
       out.writeLong(payload.getExpiryMillis());
       out.writeLong(payload.getTimestamp());
-      out.writeByteArray(payload.getPayload());
+      byte[] bytes = payload.getPayload();
+      if(bytes != null)
+      {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      else if(offHeap != null)
+      {
+        out.writeInt(offHeap.length());
+        offHeap.writeTo(out);
+      }
+      else
+      {
+        out.writeInt(-1);
+      }
     }
     out.writeInt(submit.get());
   }
@@ -84,11 +124,24 @@ class QMessage implements DataSerializable {
     {
       payload = new Message();
       payload.setCorrelationID(in.readUTF());
-      payload.setDestination(in.readUTF());
-      payload.setReplyTo(in.readUTF());
+      String replyTo = in.readUTF();
+      //reply queues are few, and repeated across messages
+      payload.setReplyTo(replyTo != null ? replyTo.intern() : null);
       payload.setExpiryMillis(in.readLong());
       payload.setTimestamp(in.readLong());
-      payload.setPayload(in.readByteArray());
+      int len = in.readInt();
+      OffHeapStore store = OffHeapStore.get();
+      if(store != null && store.accepts(len) && Thread.currentThread() instanceof PartitionOperationThread)
+      {
+        //the record to be stored, as primary, backup or migrated replica
+        offHeap = store.read(in, len);
+      }
+      else if(len >= 0)
+      {
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        payload.setPayload(bytes);
+      }
     }
     submit = new AtomicInteger(in.readInt());
     
@@ -96,8 +149,132 @@ class QMessage implements DataSerializable {
       payload.setRedelivered(submit.get() > 1);
     }
   }
+  /**
+   * Serialized form for the local {@linkplain QueueStore}. Unlike the grid form, strings
+   * may be null, and the payload is always read back on-heap.
+   * @return
+   * @throws IOException
+   */
+  byte[] toBytes() throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + payloadSize());
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(submit.get());
+    out.writeBoolean(payload != null);
+    if(payload != null)
+    {
+      writeString(out, payload.getCorrelationID());
+      writeString(out, payload.getReplyTo());
+      out.writeLong(payload.getExpiryMillis());
+      out.writeLong(payload.getTimestamp());
+      byte[] b = payload.getPayload();
+      if(b != null)
+      {
+        out.writeInt(b.length);
+        out.write(b);
+      }
+      else if(offHeap != null)
+      {
+        out.writeInt(offHeap.length());
+        offHeap.writeTo(out);
+      }
+      else
+      {
+        out.writeInt(-1);
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+  /**
+   * 
+   * @param bytes as written by {@link #toBytes()}
+   * @return
+   * @throws IOException
+   */
+  static QMessage fromBytes(byte[] bytes) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    QMessage m = new QMessage();
+    m.submit = new AtomicInteger(in.readInt());
+    if(in.readBoolean())
+    {
+      Message payload = new Message();
+      payload.setCorrelationID(readString(in));
+      String replyTo = readString(in);
+      payload.setReplyTo(replyTo != null ? replyTo.intern() : null);
+      payload.setExpiryMillis(in.readLong());
+      payload.setTimestamp(in.readLong());
+      int len = in.readInt();
+      if(len >= 0)
+      {
+        byte[] b = new byte[len];
+        in.readFully(b);
+        payload.setPayload(b);
+      }
+      payload.setRedelivered(m.submit.get() > 1);
+      m.payload = payload;
+    }
+    return m;
+  }
+  private static void writeString(DataOutput out, String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if(s != null)
+      out.writeUTF(s);
+  }
+  private static String readString(DataInput in) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+  /**
+   * Release the off-heap payload, once the record is no longer stored.
+   */
+  void releaseOffHeap()
+  {
+    OffHeapStore store = OffHeapStore.get();
+    OffHeapStore.Slot slot = offHeap;
+    if(store != null && slot != null)
+      store.release(slot);
+  }
+  /**
+   * Set the delivery count, as applied on the owner.
+   * @param count
+   */
+  void setSubmitCount(int count)
+  {
+    submit.set(count);
+    if(payload != null)
+      payload.setRedelivered(count > 1);
+  }
   void incrRedelivery()
   {
     submit.incrementAndGet();
   }
+  /**
+   * Size of the payload, without copying it on-heap.
+   * @return
+   */
+  int payloadSize()
+  {
+    if(payload == null)
+      return 0;
+    byte[] bytes = payload.getPayload();
+    if(bytes != null)
+      return bytes.length;
+    return offHeap != null ? offHeap.length() : 0;
+  }
+  void setDestination(String destination)
+  {
+    if(payload != null)
+      payload.setDestination(destination);
+  }
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+  @Override
+  public int getId() {
+    return QSerializableFactory.QMESSAGE_TYPE;
+  }
 }
@@ -0,0 +1,69 @@
+/* ============================================================================
+*
+* FILE: QSerializableFactory.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+/**
+ * Factory for the queue types put on the grid, so that only a factory and type id
+ * is written instead of the class name. Registered in hazelcast.xml against {@link #FACTORY_ID}.
+ */
+public class QSerializableFactory implements DataSerializableFactory {
+
+  public static final int FACTORY_ID = 1001;
+  
+  public static final int QID_TYPE = 1;
+  public static final int QMESSAGE_TYPE = 2;
+  public static final int CLAIM_PROCESSOR = 3;
+  public static final int REDELIVER_PROCESSOR = 4;
+  public static final int STORE_MIGRATED_PROCESSOR = 5;
+  public static final int ACK_PROCESSOR = 6;
+  
+  @Override
+  public IdentifiedDataSerializable create(int typeId) {
+    switch(typeId)
+    {
+      case QID_TYPE:
+        return new QID();
+      case QMESSAGE_TYPE:
+        return new QMessage();
+      case CLAIM_PROCESSOR:
+        return new ClaimProcessor();
+      case REDELIVER_PROCESSOR:
+        return new RedeliverProcessor();
+      case STORE_MIGRATED_PROCESSOR:
+        return new StoreMigratedProcessor();
+      case ACK_PROCESSOR:
+        return new AckProcessor();
+      default:
+        return null;
+    }
+  }
+
+}
@@ -28,22 +28,43 @@ SOFTWARE.
 */
 package com.reactiva.hazelq.core;
 
-import java.util.LinkedList;
-import java.util.concurrent.RecursiveAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.reactiva.hazelq.utils.Synchronizer;
-
-class QueueContainer implements Runnable {
+import com.reactiva.hazelq.Message;
+/**
+ * Dispatches the messages of a queue to its registered listeners. Each listener gets
+ * a fixed set of consumer loops, which pull batches from the queue into a bounded ring
+ * buffer, and {@linkplain QueueListener#concurrency() concurrency} listener loops draining
+ * the ring buffer. A consumer loop keeps the ring buffer filled up to the prefetch window
+ * of the listener (by count and bytes), and pauses only while the queue is empty or the 
+ * window is used up. Credits are given back to the window as messages are acknowledged.
+ * A {@linkplain BatchQueueListener} is dispatched batches taken from the ring buffer, 
+ * and acknowledged in bulk.
+ */
+class QueueContainer {
 
   private static final Logger log = LoggerFactory.getLogger(QueueContainer.class);
-  private boolean running = false;
+  private volatile boolean running = false;
   private final String qname;
   private long timeout = 1000;
   private TimeUnit timeoutUnit = TimeUnit.MILLISECONDS;
+  private int fetchSize = 64;
+  private int consumerLoops = 1;
+  private int prefetchCount = 256;
+  private long prefetchBytes = 16 * 1024 * 1024;
   
   private final QueueService service;
   
@@ -58,12 +79,19 @@ class QueueContainer implements Runnable {
   public void start()
   {
     running = true;
-    service.submitPoller(this);
+    for(Dispatcher d : dispatchers.values())
+    {
+      d.start();
+    }
   }
     
   public void destroy()
   {
     running = false;
+    for(Dispatcher d : dispatchers.values())
+    {
+      d.stop();
+    }
   }
   /**
    * Register a new {@linkplain QueueListener} with callback method {@linkplain QueueListener#onMessage(QMessage) onMessage} 
@@ -72,7 +100,11 @@ class QueueContainer implements Runnable {
    */
   public void register(QueueListener o)
   {
-    addObserver(o);
+    Dispatcher d = new Dispatcher(o);
+    if(dispatchers.putIfAbsent(o, d) == null && running)
+    {
+      d.start();
+    }
   }
   /**
    * 
@@ -81,133 +113,402 @@ class QueueContainer implements Runnable {
    */
   public boolean unregister(QueueListener o)
   {
-    sync.begin();
-    try {
-      return list.remove(o);
-    } finally {
-      sync.end();
+    Dispatcher d = dispatchers.remove(o);
+    if(d != null)
+    {
+      d.stop();
+      return true;
     }
+    return false;
 
   }
-  private final LinkedList<QueueListener> list = new LinkedList<>();
-  private final Synchronizer sync = new Synchronizer();
+  private final ConcurrentMap<QueueListener, Dispatcher> dispatchers = new ConcurrentHashMap<>();
   /**
-   * 
-   * @param o
+   * Blocks on the queue, with the fork join pool compensating for the blocked worker.
    */
-  private void addObserver(QueueListener o) {
-    sync.begin();
-    try {
-      list.add(o);
-    } finally {
-      sync.end();
-    }
-    
-  }
-  private QueueListener nextObserver()
+  private class QueueDrain implements ManagedBlocker
   {
-    QueueListener o;
-    sync.begin();
-    try {
-      o = list.pollFirst();
+    private final List<MessageAndKey> batch;
+    private final int max;
+    private boolean done;
+    QueueDrain(List<MessageAndKey> batch, int max) {
+      this.batch = batch;
+      this.max = max;
     }
-    finally
-    {
-      sync.end();
+    @Override
+    public boolean block() throws InterruptedException {
+      service.drainTo(qname, batch, max, timeout, timeoutUnit);
+      done = true;
+      return true;
+    }
+    @Override
+    public boolean isReleasable() {
+      return done;
     }
-    return o;
   }
-  private void run0()
+  /**
+   * Blocks on the ring buffer, with the fork join pool compensating for the blocked worker.
+   */
+  private class RingPoll implements ManagedBlocker
   {
-
-    QueueListener o = nextObserver();
-    if(o != null)
-    {
-      try 
+    private final ArrayBlockingQueue<MessageAndKey> ring;
+    private final long nanos;
+    private MessageAndKey item;
+    private boolean done;
+    RingPoll(ArrayBlockingQueue<MessageAndKey> ring, long nanos) {
+      this.ring = ring;
+      this.nanos = nanos;
+    }
+    @Override
+    public boolean block() throws InterruptedException {
+      item = ring.poll(nanos, TimeUnit.NANOSECONDS);
+      done = true;
+      return true;
+    }
+    @Override
+    public boolean isReleasable() {
+      if(!done)
       {
-        service.submitWorker(new Worker(o, o.concurrency()));
-      } finally {
-        addObserver(o);
-        service.submitPoller(this);  
+        item = ring.poll();
+        done = item != null;
       }
+      return done;
     }
-          
-  
   }
-  @Override
-  public void run() {
-    if(running)
-    {
-      run0();
+  /**
+   * Blocks till prefetch credits are reserved, with the fork join pool compensating for the blocked worker.
+   */
+  private class CreditWait implements ManagedBlocker
+  {
+    private final PrefetchCredits credits;
+    private final int max;
+    private int reserved;
+    private boolean done;
+    CreditWait(PrefetchCredits credits, int max) {
+      this.credits = credits;
+      this.max = max;
+    }
+    @Override
+    public boolean block() throws InterruptedException {
+      reserved = credits.reserve(max, timeout, timeoutUnit);
+      done = true;
+      return true;
+    }
+    @Override
+    public boolean isReleasable() {
+      if(!done)
+      {
+        reserved = credits.tryReserve(max);
+        done = reserved > 0;
+      }
+      return done;
     }
-
   }
   /**
-   * Poll for next message.
-   * @return
+   * Blocks on a full ring buffer, with the fork join pool compensating for the blocked worker.
    */
-  protected MessageAndKey pollNext()
+  private class RingOffer implements ManagedBlocker
   {
-    return service.pollUninterruptibly(qname, timeout, timeoutUnit);
-    //return service.poll(qname);
+    private final ArrayBlockingQueue<MessageAndKey> ring;
+    private final MessageAndKey item;
+    private boolean accepted;
+    private boolean done;
+    RingOffer(ArrayBlockingQueue<MessageAndKey> ring, MessageAndKey item) {
+      this.ring = ring;
+      this.item = item;
+    }
+    @Override
+    public boolean block() throws InterruptedException {
+      accepted = ring.offer(item, timeout, timeoutUnit);
+      done = true;
+      return true;
+    }
+    @Override
+    public boolean isReleasable() {
+      if(!done)
+      {
+        accepted = ring.offer(item);
+        done = accepted;
+      }
+      return done;
+    }
   }
   /**
-   * 
+   * The consumer and listener loops of a single listener.
    */
-  private class Worker extends RecursiveAction
+  private class Dispatcher
   {
-
-    private final int concurrency;
+    private final QueueListener listener;
+    private final ArrayBlockingQueue<MessageAndKey> ring;
+    private final PrefetchCredits credits;
+    private volatile boolean active;
+    
+    Dispatcher(QueueListener listener) {
+      this.listener = listener;
+      this.ring = new ArrayBlockingQueue<>(prefetchCount);
+      this.credits = new PrefetchCredits(prefetchCount, prefetchBytes);
+    }
+    boolean isActive()
+    {
+      return active && running;
+    }
+    void start()
+    {
+      active = true;
+      for(int i=0; i<consumerLoops; i++)
+      {
+        service.execute(new Runnable() {
+          
+          @Override
+          public void run() {
+            consume();
+          }
+        });
+      }
+      for(int i=0; i<listener.concurrency(); i++)
+      {
+        service.execute(new Runnable() {
+          
+          @Override
+          public void run() {
+            if(listener instanceof BatchQueueListener)
+              dispatchBatches((BatchQueueListener) listener);
+            else
+              dispatch();
+          }
+        }, listener.executionMode());
+      }
+    }
+    void stop()
+    {
+      active = false;
+      returnUnprocessed();
+    }
     /**
-     * 
+     * Return the messages fetched, but not yet dispatched, to the queue.
      */
-    private static final long serialVersionUID = 1L;
+    private void returnUnprocessed()
+    {
+      List<MessageAndKey> unprocessed = new ArrayList<>();
+      ring.drainTo(unprocessed);
+      for(MessageAndKey m : unprocessed)
+      {
+        returnToQueue(m);
+      }
+    }
+    private void returnToQueue(MessageAndKey m)
+    {
+      try {
+        service.add(m, false);
+      } finally {
+        credits.release(1, m.message.payloadSize());
+      }
+    }
     /**
-     * 
-     * @param o
+     * Give back the credits of dispatched messages.
+     * @param batch
      */
-    public Worker(QueueListener o, int concurrency) {
-      super();
-      this.o = o;
-      this.concurrency = concurrency;
+    private void processed(List<MessageAndKey> batch)
+    {
+      long size = 0;
+      for(MessageAndKey m : batch)
+      {
+        size += m.message.payloadSize();
+      }
+      credits.release(batch.size(), size);
     }
-
-    private final QueueListener o;
-
-    private void run() 
+    /**
+     * Consumer loop. Fetch up to the credits reserved. Fetched messages that do not fit
+     * the byte window are returned to the queue.
+     */
+    private void consume()
     {
-      if (running) 
+      List<MessageAndKey> batch = new ArrayList<>(fetchSize);
+      try 
       {
-        MessageAndKey m = pollNext();
-        log.debug("Polling done..");
-        if (m.message != null) {
-
-          if(running)
-            notifyObserver(m, o);
-          else
-            service.add(m, false);
+        while (isActive()) 
+        {
+          batch.clear();
+          try 
+          {
+            CreditWait credit = new CreditWait(credits, fetchSize);
+            ForkJoinPool.managedBlock(credit);
+            if(credit.reserved == 0)
+              continue;
+            int taken = 0;
+            try 
+            {
+              ForkJoinPool.managedBlock(new QueueDrain(batch, credit.reserved));
+              while(taken < batch.size() && credits.take(batch.get(taken).message.payloadSize()))
+              {
+                taken++;
+              }
+            } 
+            finally {
+              credits.unreserve(credit.reserved - taken);
+            }
+            int i = 0;
+            while(i < taken && enqueue(batch.get(i)))
+            {
+              i++;
+            }
+            //stopped midway
+            for(; i < taken; i++)
+            {
+              returnToQueue(batch.get(i));
+            }
+            for(; i < batch.size(); i++)
+            {
+              service.add(batch.get(i), false);
+            }
+          } 
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          catch (Exception e) {
+            log.error("-- Consumer loop caught exception --", e);
+          }
+        }
+      } 
+      finally {
+        if(!isActive())
+          returnUnprocessed();
+      }
+      log.debug("Consumer loop stopped for listener "+listener.identifier());
+    }
+    /**
+     * Put to the ring buffer, waiting while it is full.
+     * @param m
+     * @return false if the dispatcher was stopped meanwhile
+     * @throws InterruptedException
+     */
+    private boolean enqueue(MessageAndKey m) throws InterruptedException
+    {
+      while(isActive())
+      {
+        RingOffer offer = new RingOffer(ring, m);
+        ForkJoinPool.managedBlock(offer);
+        if(offer.accepted)
+          return true;
+      }
+      return false;
+    }
+    /**
+     * Listener loop.
+     */
+    private void dispatch()
+    {
+      while (isActive()) 
+      {
+        try 
+        {
+          RingPoll poll = new RingPoll(ring, timeoutUnit.toNanos(timeout));
+          ForkJoinPool.managedBlock(poll);
+          if(poll.item != null)
+          {
+            try {
+              notifyObserver(poll.item, listener);
+            } finally {
+              credits.release(1, poll.item.message.payloadSize());
+            }
+          }
         } 
-
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
       }
-     }
-
-    @Override
-    protected void compute() {
-      if(concurrency > 1)
+      log.debug("Listener loop stopped for listener "+listener.identifier());
+    }
+    /**
+     * Listener loop, for a batch listener.
+     * @param bl
+     */
+    private void dispatchBatches(BatchQueueListener bl)
+    {
+      final int maxSize = Math.max(1, bl.maxBatchSize());
+      final long linger = TimeUnit.MILLISECONDS.toNanos(bl.maxLingerMillis());
+      List<MessageAndKey> batch = new ArrayList<>(maxSize);
+      while (isActive()) 
       {
-        //fork
-        for(int i=1; i<o.concurrency(); i++)
+        batch.clear();
+        try 
         {
-          new Worker(o, 1).fork();
+          RingPoll poll = new RingPoll(ring, timeoutUnit.toNanos(timeout));
+          ForkJoinPool.managedBlock(poll);
+          if(poll.item == null)
+            continue;
+          
+          batch.add(poll.item);
+          final long deadline = System.nanoTime() + linger;
+          while(batch.size() < maxSize)
+          {
+            ring.drainTo(batch, maxSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if(batch.size() >= maxSize || remaining <= 0)
+              break;
+            poll = new RingPoll(ring, remaining);
+            ForkJoinPool.managedBlock(poll);
+            if(poll.item != null)
+              batch.add(poll.item);
+          }
+          try {
+            notifyObservers(batch, bl);
+          } finally {
+            processed(batch);
+          }
+        } 
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          for(MessageAndKey m : batch)
+            returnToQueue(m);
+          break;
         }
       }
-      else
+      log.debug("Listener loop stopped for listener "+listener.identifier());
+    }
+  }
+  /**
+   * Dispatch a batch. Acknowledged in bulk on success, else the failed messages
+   * are redelivered.
+   * @param batch
+   * @param o
+   */
+  private void notifyObservers(final List<MessageAndKey> batch, final BatchQueueListener o) 
+  {
+    List<Message> msgs = new ArrayList<>(batch.size());
+    for(MessageAndKey m : batch)
+    {
+      msgs.add(m.message.getPayload());
+    }
+    try 
+    {
+      o.onMessages(msgs);
+      service.commit(batch);
+    } 
+    catch (BatchFailedException e) {
+      log.warn("-- Container caught batch failure, redelivering "+e.getFailed().size()+" of "+batch.size()+" --", e);
+      Set<Message> failed = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+      failed.addAll(e.getFailed());
+      List<MessageAndKey> done = new ArrayList<>(batch.size());
+      for(MessageAndKey m : batch)
       {
-        //do yourself
-        run();
+        if(failed.contains(m.message.getPayload()))
+          service.add(m, true);
+        else
+          done.add(m);
+      }
+      if(!done.isEmpty())
+        service.commit(done);
+    }
+    catch (Exception e) {
+      log.error("-- Container caught execption --", e);
+      for(MessageAndKey m : batch)
+      {
+        service.add(m, true);
       }
     }
-    
   }
   private void notifyObserver(final MessageAndKey m, final QueueListener o) 
   {
@@ -235,5 +536,47 @@ class QueueContainer implements Runnable {
   public void setTimeoutUnit(TimeUnit timeoutUnit) {
     this.timeoutUnit = timeoutUnit;
   }
+  public int getFetchSize() {
+    return fetchSize;
+  }
+  /**
+   * Max number of messages pulled from the queue by a consumer loop, in one go.
+   * @param fetchSize
+   */
+  public void setFetchSize(int fetchSize) {
+    this.fetchSize = fetchSize;
+  }
+  public int getConsumerLoops() {
+    return consumerLoops;
+  }
+  /**
+   * Number of consumer loops per listener.
+   * @param consumerLoops
+   */
+  public void setConsumerLoops(int consumerLoops) {
+    this.consumerLoops = consumerLoops;
+  }
+  public int getPrefetchCount() {
+    return prefetchCount;
+  }
+  /**
+   * Max number of messages fetched but not yet acknowledged, per listener. Applies to
+   * listeners registered thereafter.
+   * @param prefetchCount
+   */
+  public void setPrefetchCount(int prefetchCount) {
+    this.prefetchCount = prefetchCount;
+  }
+  public long getPrefetchBytes() {
+    return prefetchBytes;
+  }
+  /**
+   * Max payload bytes fetched but not yet acknowledged, per listener. Applies to
+   * listeners registered thereafter.
+   * @param prefetchBytes
+   */
+  public void setPrefetchBytes(long prefetchBytes) {
+    this.prefetchBytes = prefetchBytes;
+  }
   
 }
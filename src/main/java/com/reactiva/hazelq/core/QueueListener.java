@@ -67,7 +67,7 @@ public abstract class QueueListener  {
    */
   public String identifier()
   {
-    return hashCode()+"";
+    return System.identityHashCode(this)+"";
   }
   /**
    * To be overridden to increase concurrency.
@@ -77,6 +77,14 @@ public abstract class QueueListener  {
   {
     return 1;
   }
+  /**
+   * To be overridden to run the listener concurrency on virtual threads.
+   * @return
+   */
+  public ExecutionMode executionMode()
+  {
+    return ExecutionMode.PLATFORM;
+  }
   /**
    * Callback method invoked on message added to queue.
    * @param m
@@ -29,13 +29,27 @@ SOFTWARE.
 package com.reactiva.hazelq.core;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
 import java.util.concurrent.ForkJoinWorkerThread;
-import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -43,39 +57,79 @@ import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.Member;
-import com.hazelcast.core.Partition;
 import com.reactiva.hazelq.Message;
+import com.reactiva.hazelq.utils.VirtualThreads;
 
 public class QueueService implements IQueueService {
 
-  static final String QMAP_SUFFIX = "_$1";
   private static final Logger log = LoggerFactory.getLogger(QueueService.class);
   @Autowired
   private HazelcastInstance hz;
-  private Map<String, MQueueImpl> allQueue = new HashMap<>();
+  private Map<String, MQueueImpl> allQueue = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, InFlightTable> allInFlight = new ConcurrentHashMap<>();
+  private ScheduledExecutorService redeliveryTimer;
   private Map<String, QueueContainer> allQueueListeners = new HashMap<>();
   
   private ForkJoinPool pollerThreads;
   
   /**
-   * 
-   * @param poller
+   * Run a container loop.
+   * @param loop
    */
-  void submitPoller(Runnable poller)
+  void execute(Runnable loop)
   {
-    pollerThreads.submit(poller);
+    pollerThreads.execute(loop);
   }
   /**
-   * @param worker
+   * Run a listener loop in the given mode.
+   * @param loop
+   * @param mode
    */
-  void submitWorker(RecursiveAction worker)
+  void execute(Runnable loop, ExecutionMode mode)
   {
-    pollerThreads.invoke(worker);
+    if(mode == ExecutionMode.VIRTUAL)
+      listenerThreads().execute(loop);
+    else
+      pollerThreads.execute(loop);
+  }
+  private volatile ExecutorService listenerThreads;
+  private final AtomicInteger listenerThreadCount = new AtomicInteger();
+  /**
+   * Virtual threads if available, else a thread per task.
+   * @return
+   */
+  private ExecutorService listenerThreads()
+  {
+    if(listenerThreads == null)
+    {
+      synchronized (this) {
+        if(listenerThreads == null)
+        {
+          ExecutorService ex = VirtualThreads.newExecutor();
+          if(ex == null)
+          {
+            log.warn("Virtual threads not supported by this JVM. Listeners will run on dedicated platform threads");
+            ex = Executors.newCachedThreadPool(new ThreadFactory() {
+              
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Listener - "+listenerThreadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+          }
+          listenerThreads = ex;
+        }
+      }
+    }
+    return listenerThreads;
   }
   @Autowired
   private UIDGenerator uidGen;
@@ -95,15 +149,21 @@ public class QueueService implements IQueueService {
   private void stop()
   {
     log.warn("::::::::: Shutdown sequence initiated ::::::::");
+    //entry processors running on partition threads no longer reach the queues
+    hz.getUserContext().remove(QueueService.class.getName());
     for(MQueueImpl mq : allQueue.values())
     {
       mq.close();
     }
+    allQueue.clear();
     for(QueueContainer qc : allQueueListeners.values())
     {
       qc.destroy();
     }
     pollerThreads.shutdown();
+    redeliveryTimer.shutdown();
+    if(listenerThreads != null)
+      listenerThreads.shutdown();
     try {
       pollerThreads.awaitTermination(30, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
@@ -112,14 +172,61 @@ public class QueueService implements IQueueService {
     
     if(hz.getLifecycleService().isRunning())
       hz.getLifecycleService().shutdown();
+    
+    OffHeapStore.shutdown();
   }
   
   static final String HZ_MAP_SERVICE = "hz:impl:mapService";
   private ClusterListener clusterListener;
   private int containerThreadCount = 0;
+  
+  @Value("${queue.offheap.enable:false}")
+  private boolean offHeapEnabled;
+  @Value("${queue.offheap.min-bytes:1024}")
+  private int offHeapMinBytes;
+  @Value("${queue.offheap.segment-bytes:67108864}")
+  private int offHeapSegmentBytes;
+  @Value("${queue.offheap.compact-ratio:0.5}")
+  private double offHeapCompactRatio;
+  @Value("${queue.visibility.timeout.ms:30000}")
+  private long visibilityTimeoutMillis;
+  @Value("${queue.visibility.check.ms:1000}")
+  private long visibilityCheckMillis;
+  @Value("${queue.prefetch.count:256}")
+  private int prefetchCount;
+  @Value("${queue.prefetch.bytes:16777216}")
+  private long prefetchBytes;
+  @Value("${queue.store.restore-window.ms:60000}")
+  private long storeRestoreWindowMillis;
   @PostConstruct
   private void init()
   {
+    if(offHeapEnabled)
+    {
+      OffHeapStore.configure(offHeapMinBytes, offHeapSegmentBytes, offHeapCompactRatio);
+    }
+    hz.getUserContext().put(QueueService.class.getName(), this);
+    //head set updates submitted by a processor in progress on shutdown are dropped
+    redeliveryTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "hq-redelivery");
+        t.setDaemon(true);
+        return t;
+      }
+    }, new ThreadPoolExecutor.DiscardPolicy());
+    redeliveryTimer.scheduleWithFixedDelay(new Runnable() {
+      
+      @Override
+      public void run() {
+        try {
+          redeliverExpired();
+        } catch (Exception e) {
+          log.warn("Unable to redeliver expired messages", e);
+        }
+      }
+    }, visibilityCheckMillis, visibilityCheckMillis, TimeUnit.MILLISECONDS);
 	  
     pollerThreads = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinWorkerThreadFactory() {
       
@@ -163,19 +270,32 @@ public class QueueService implements IQueueService {
       if(HZ_MAP_SERVICE.equals(obj.getServiceName()))
       {
         String imap = obj.getName();
-        MQueueImpl mq = getQ(imap);
-        
-        
-        for(Partition part : hz.getPartitionService().getPartitions())
+        if(imap.startsWith(MQueueImpl.MAP_PREFIX))
         {
-          if(part.getOwner().localMember())
-            mq.fireOnMigration(part.getPartitionId());
+          String q = imap.substring(MQueueImpl.MAP_PREFIX.length());
+          getQ(q);
+          log.info("Registered queue => "+q);
         }
-        
-        log.info("Registered queue => "+imap);
       }
       
     }
+    Set<String> stored = QueueStore.storedQueues(hz);
+    if(!stored.isEmpty())
+    {
+      boolean restore = QueueStore.beginRestore(hz, storeRestoreWindowMillis);
+      for(String q : stored)
+      {
+        if (restore) {
+          int n = getQ(q).reloadStored();
+          log.info("Reloaded queue => "+q+", messages: "+n);
+        }
+        else
+        {
+          getQ(q).discardStored();
+          log.info("Joined a live cluster. Discarded stored messages of queue => "+q);
+        }
+      }
+    }
     log.info("---------------------------------------------");
     log.info("Hazelcast system initialized. Joined group ["+hz.getConfig().getGroupConfig().getName()+"]");
     
@@ -199,6 +319,15 @@ public class QueueService implements IQueueService {
   {
     getL(q).register(ql);
   }
+  /* (non-Javadoc)
+   * @see com.reactiva.hazelq.core.IQueueService#unregisterListener(com.reactiva.hazelq.core.QueueListener, java.lang.String)
+   */
+  @Override
+  public boolean unregisterListener(QueueListener ql, String q)
+  {
+    QueueContainer qc = allQueueListeners.get(q);
+    return qc != null && qc.unregister(ql);
+  }
   private QueueContainer getL(String q)
   {
     if(!allQueueListeners.containsKey(q))
@@ -207,7 +336,8 @@ public class QueueService implements IQueueService {
         if(!allQueueListeners.containsKey(q))
         {
           QueueContainer qc = new QueueContainer(q, this);
-          getQ(q).reEnqueueUnprocessed();
+          qc.setPrefetchCount(prefetchCount);
+          qc.setPrefetchBytes(prefetchBytes);
           qc.start();
           allQueueListeners.put(q, qc);
         }
@@ -225,6 +355,10 @@ public class QueueService implements IQueueService {
         {
           MQueueImpl dq = new MQueueImpl(hz, q);
           dq.setUidGen(uidGen);
+          dq.setInFlight(inFlight(q));
+          dq.setExecutor(redeliveryTimer);
+          dq.setStore(QueueStore.get(hz, q));
+          dq.loadLocalHeads();
           clusterListener.registerQueue(dq);
           allQueue.put(q, dq);
         }
@@ -255,6 +389,33 @@ public class QueueService implements IQueueService {
     Assert.notNull(msg.getDestination(), "Destination is null");
     return add(new QMessage(msg), msg.getDestination());
   }
+  /* (non-Javadoc)
+   * @see com.reactiva.hazelq.core.IQueueService#addAll(java.util.Collection)
+   */
+  @Override
+  public boolean addAll(Collection<Message> msgs)
+  {
+    if(!isRunning())
+      return false;
+    Map<String, List<QMessage>> byQueue = new HashMap<>();
+    for(Message msg : msgs)
+    {
+      Assert.notNull(msg.getDestination(), "Destination is null");
+      List<QMessage> batch = byQueue.get(msg.getDestination());
+      if(batch == null)
+      {
+        batch = new ArrayList<>();
+        byQueue.put(msg.getDestination(), batch);
+      }
+      batch.add(new QMessage(msg));
+    }
+    boolean added = false;
+    for(Entry<String, List<QMessage>> e : byQueue.entrySet())
+    {
+      added |= getQ(e.getKey()).addAll(e.getValue());
+    }
+    return added;
+  }
   /**
    * Non blocking poll
    * @param q
@@ -279,6 +440,20 @@ public class QueueService implements IQueueService {
     return getQ(q).poll(duration, unit);
     
   }
+  /**
+   * Claim up to max messages from the queue, waiting only if there are none.
+   * @param q
+   * @param sink
+   * @param max
+   * @param duration
+   * @param unit
+   * @return
+   * @throws InterruptedException
+   */
+  int drainTo(String q, List<MessageAndKey> sink, int max, long duration, TimeUnit unit) throws InterruptedException
+  {
+    return getQ(q).drainTo(sink, max, duration, unit);
+  }
   /**
    * Uninterruptible version of {@link #poll(String, long, TimeUnit)}.
    * @param q
@@ -339,11 +514,101 @@ public class QueueService implements IQueueService {
    * @param m
    */
   void add(MessageAndKey m, boolean redelivery) {
-    if(redelivery)
-      m.message.incrRedelivery();
-    getQ(m.message.getPayload().getDestination()).add(m.key, m.message);
+    getQ(m.message.getPayload().getDestination()).redeliver(m.key, redelivery);
   }
   void commit(MessageAndKey m) {
-    getQ(m.message.getPayload().getDestination()).removeSurrogate(m.key);    
+    getQ(m.message.getPayload().getDestination()).ack(m.key);    
+  }
+  /**
+   * Acknowledge a batch of messages, with a single call per queue.
+   * @param msgs
+   */
+  void commit(Collection<MessageAndKey> msgs) {
+    Map<String, Set<QID>> byQueue = new HashMap<>();
+    for(MessageAndKey m : msgs)
+    {
+      String q = m.message.getPayload().getDestination();
+      Set<QID> keys = byQueue.get(q);
+      if(keys == null)
+      {
+        keys = new HashSet<>();
+        byQueue.put(q, keys);
+      }
+      keys.add(m.key);
+    }
+    for(Entry<String, Set<QID>> e : byQueue.entrySet())
+    {
+      getQ(e.getKey()).ackAll(e.getValue());
+    }
+  }
+  /**
+   * 
+   * @param hz
+   * @return the service running on the given instance, or null
+   */
+  static QueueService of(HazelcastInstance hz)
+  {
+    return hz != null ? (QueueService) hz.getUserContext().get(QueueService.class.getName()) : null;
+  }
+  /**
+   * The in flight keys of a queue on this member. Created on first use, since a 
+   * claim can reach a member before the queue is created there.
+   * @param q
+   * @return
+   */
+  InFlightTable inFlight(String q)
+  {
+    InFlightTable t = allInFlight.get(q);
+    if(t == null)
+    {
+      t = new InFlightTable();
+      InFlightTable prev = allInFlight.putIfAbsent(q, t);
+      if(prev != null)
+        t = prev;
+    }
+    return t;
+  }
+  /**
+   * Mark a key in flight on the owner member. Invoked on the partition thread.
+   * @param q
+   * @param key
+   * @return false if already in flight
+   */
+  boolean claimed(String q, QID key)
+  {
+    if(!inFlight(q).claim(key, System.currentTimeMillis() + visibilityTimeoutMillis))
+      return false;
+    MQueueImpl mq = allQueue.get(q);
+    if(mq != null)
+      mq.onClaimed(key);
+    return true;
+  }
+  /**
+   * Return an in flight key to the queue on the owner member. Invoked on the partition thread.
+   * @param q
+   * @param key
+   * @return false if not in flight
+   */
+  boolean released(String q, QID key)
+  {
+    if(!inFlight(q).release(key))
+      return false;
+    MQueueImpl mq = allQueue.get(q);
+    if(mq != null)
+      mq.onReleased(key);
+    return true;
+  }
+  private void redeliverExpired()
+  {
+    long now = System.currentTimeMillis();
+    for(Entry<String, InFlightTable> e : allInFlight.entrySet())
+    {
+      List<QID> expired = e.getValue().expired(now);
+      if(!expired.isEmpty())
+      {
+        log.info("Redelivering "+expired.size()+" message(s) past visibility timeout on queue "+e.getKey());
+        getQ(e.getKey()).redeliver(expired);
+      }
+    }
   }
 }
@@ -0,0 +1,562 @@
+/* ============================================================================
+*
+* FILE: QueueStore.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.reactiva.hazelq.db.AbstractDurableMap;
+import com.reactiva.hazelq.db.MapIOException;
+import com.reactiva.hazelq.db.SyncPolicy;
+/**
+ * Persists a queue map to local disk, in a durable file per partition under <i>dir/queue</i>.
+ * Configured as the map store of the queue maps (<i>hq.q.*</i>), preferably write-behind 
+ * (<i>write-delay-seconds</i> &gt; 0), so that the disk writes are batched off the enqueue path. 
+ * Each batch is appended, and synced, in one go per partition file.
+ * <p>
+ * The store does not take part in the initial load of the map. The files are reloaded only on a
+ * cold start of the cluster: the first member to start opens a {@linkplain #beginRestore(HazelcastInstance, long) restore window},
+ * and the members starting within it {@linkplain #reload(IMap) reload} their files. Partition ownership 
+ * after a restart need not match the files, so the entries of partitions owned elsewhere are put
+ * to their owner (and stored there), and the local file is dropped. A member joining a live cluster 
+ * {@linkplain #discard() discards} its files, as the messages may have been consumed meanwhile.
+ * <p>
+ * A partition migrating in replaces the local file with the migrated entries, and the file of a 
+ * partition migrating out is dropped. Writes to a partition while it is being replaced are held,
+ * and applied over the migrated entries.
+ * <p>
+ * Properties: <i>dir</i> (hq-store), <i>segment-bytes</i> (8 MB).
+ */
+public class QueueStore implements MapStore<QID, QMessage>, MapLoaderLifecycleSupport {
+
+  private static final Logger log = LoggerFactory.getLogger(QueueStore.class);
+  public static final String PROP_DIR = "dir";
+  public static final String PROP_SEGMENT_BYTES = "segment-bytes";
+  static final String DEFAULT_DIR = "hq-store";
+  static final String DEFAULT_SEGMENT_BYTES = "8388608";
+  private static final String FILE_PREFIX = "p-";
+  
+  /**
+   * Messages of a partition, keyed by the message id.
+   */
+  static class PartitionFile extends AbstractDurableMap<QID, QMessage>
+  {
+    PartitionFile(String dir, String fileName, int segmentBytes) {
+      super(dir, fileName, segmentBytes, SyncPolicy.PER_BATCH);
+    }
+    @Override
+    protected String keyToString(QID key) {
+      return key.getUid().toString();
+    }
+    @Override
+    protected QID stringToKey(String key) {
+      return new QID(UUID.fromString(key));
+    }
+    @Override
+    protected QMessage bytesToValue(byte[] val) {
+      try {
+        return val != null ? QMessage.fromBytes(val) : null;
+      } catch (IOException e) {
+        throw new MapIOException(e);
+      }
+    }
+    @Override
+    protected byte[] valueToBytes(QMessage val) {
+      try {
+        return val.toBytes();
+      } catch (IOException e) {
+        throw new MapIOException(e);
+      }
+    }
+  }
+  
+  private HazelcastInstance hz;
+  private String mapName;
+  private String queue;
+  private File dir;
+  private int segmentBytes;
+  private final ConcurrentMap<Integer, PartitionFile> files = new ConcurrentHashMap<>();
+  /**
+   * Partitions having a local file.
+   */
+  private final Set<Integer> stored = ConcurrentHashMap.newKeySet();
+  /**
+   * A partition migrating in, whose file is yet to be replaced.
+   */
+  private static class Migration
+  {
+    final Map<QID, QMessage> staged = new ConcurrentHashMap<>();
+    /**
+     * Writes since the migration began, in order. A null value is a delete.
+     */
+    final List<Entry<QID, QMessage>> writes = new ArrayList<>();
+  }
+  private final ConcurrentMap<Integer, Migration> migrations = new ConcurrentHashMap<>();
+  /**
+   * Writes hold the read lock, so that none is lost while a file is replaced.
+   */
+  private final ReadWriteLock replaceLock = new ReentrantReadWriteLock();
+  
+  public QueueStore() {
+    
+  }
+  private static final String RESTORE_MARK = QueueStore.class.getName() + ".restore";
+  
+  private static String contextKey(String queue)
+  {
+    return QueueStore.class.getName() + ":" + queue;
+  }
+  /**
+   * The store of a queue, if persistence is enabled. The queue map should already be created.
+   * @param hz
+   * @param queue
+   * @return
+   */
+  static QueueStore get(HazelcastInstance hz, String queue)
+  {
+    return (QueueStore) hz.getUserContext().get(contextKey(queue));
+  }
+  /**
+   * Whether this member is part of a cold start of the cluster, and should reload its files. The 
+   * first member to start sets a cluster wide deadline, and the members starting before it are
+   * part of the cold start. The mark lives as long as the cluster does.
+   * @param hz
+   * @param windowMillis
+   * @return
+   */
+  static boolean beginRestore(HazelcastInstance hz, long windowMillis)
+  {
+    IAtomicLong mark = hz.getAtomicLong(RESTORE_MARK);
+    long now = hz.getCluster().getClusterTime();
+    if(mark.compareAndSet(0, now + windowMillis))
+      return true;
+    return now < mark.get();
+  }
+  /**
+   * Names of the queues having files in the configured store directory.
+   * @param hz
+   * @return
+   */
+  static Set<String> storedQueues(HazelcastInstance hz)
+  {
+    MapStoreConfig msc = hz.getConfig().findMapConfig(MQueueImpl.mapName("")).getMapStoreConfig();
+    if(msc == null || !msc.isEnabled() || !QueueStore.class.getName().equals(msc.getClassName()))
+      return Collections.emptySet();
+    File base = new File(msc.getProperties().getProperty(PROP_DIR, DEFAULT_DIR));
+    Set<String> names = new HashSet<>();
+    File[] dirs = base.listFiles();
+    if(dirs != null)
+    {
+      for(File f : dirs)
+      {
+        if(f.isDirectory())
+          names.add(f.getName());
+      }
+    }
+    return names;
+  }
+  @Override
+  public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+    this.hz = hazelcastInstance;
+    this.mapName = mapName;
+    if(!mapName.startsWith(MQueueImpl.MAP_PREFIX))
+      throw new IllegalArgumentException("Not a queue map: "+mapName);
+    queue = mapName.substring(MQueueImpl.MAP_PREFIX.length());
+    dir = new File(properties.getProperty(PROP_DIR, DEFAULT_DIR), queue);
+    segmentBytes = Integer.parseInt(properties.getProperty(PROP_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES));
+    dir.mkdirs();
+    stored.addAll(listStoredPartitions());
+    hz.getUserContext().put(contextKey(queue), this);
+    log.info("["+mapName+"] Persisting to "+dir.getAbsolutePath());
+  }
+
+  @Override
+  public void destroy() {
+    hz.getUserContext().remove(contextKey(queue));
+    for(Integer p : files.keySet())
+    {
+      close(p);
+    }
+  }
+  private void close(int partition)
+  {
+    PartitionFile f = files.remove(partition);
+    if(f != null)
+    {
+      try {
+        f.close();
+      } catch (IOException e) {
+        log.warn("["+mapName+"] Unable to close file of partition "+partition, e);
+      }
+    }
+  }
+  private static int partitionOfFile(String name)
+  {
+    if(!name.startsWith(FILE_PREFIX))
+      return -1;
+    int dot = name.indexOf('.', FILE_PREFIX.length());
+    try {
+      return Integer.parseInt(name.substring(FILE_PREFIX.length(), dot));
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+  /**
+   * 
+   * @return partitions having a file in the directory
+   */
+  private Set<Integer> listStoredPartitions()
+  {
+    Set<Integer> parts = new TreeSet<>();
+    String[] names = dir.list();
+    if(names != null)
+    {
+      for(String n : names)
+      {
+        int p = partitionOfFile(n);
+        if(p >= 0)
+          parts.add(p);
+      }
+    }
+    return parts;
+  }
+  private PartitionFile file(int partition)
+  {
+    PartitionFile f = files.get(partition);
+    if(f == null)
+    {
+      synchronized (files) {
+        f = files.get(partition);
+        if(f == null)
+        {
+          f = new PartitionFile(dir.getPath(), FILE_PREFIX + partition, segmentBytes);
+          files.put(partition, f);
+          stored.add(partition);
+        }
+      }
+    }
+    return f;
+  }
+  private int partitionOf(QID key)
+  {
+    return hz.getPartitionService().getPartition(key).getPartitionId();
+  }
+  /**
+   * The map is the latest for a partition migrating in, so nothing is loaded for it.
+   */
+  @Override
+  public QMessage load(QID key) {
+    int p = partitionOf(key);
+    if(!stored.contains(p) || migrations.containsKey(p))
+      return null;
+    return file(p).get(key);
+  }
+
+  @Override
+  public Map<QID, QMessage> loadAll(Collection<QID> keys) {
+    Map<QID, QMessage> loaded = new HashMap<>();
+    for(QID k : keys)
+    {
+      QMessage m = load(k);
+      if(m != null)
+        loaded.put(k, m);
+    }
+    return loaded;
+  }
+  /**
+   * No initial load. Members {@linkplain #reload(IMap) reload} their own partitions.
+   */
+  @Override
+  public Iterable<QID> loadAllKeys() {
+    return null;
+  }
+
+  @Override
+  public void store(QID key, QMessage value) {
+    write(key, value);
+  }
+  /**
+   * Write to the file of the partition, or hold the write if the partition is migrating in.
+   * @param key
+   * @param value null to delete
+   */
+  private void write(QID key, QMessage value)
+  {
+    int p = partitionOf(key);
+    replaceLock.readLock().lock();
+    try 
+    {
+      Migration m = migrations.get(p);
+      if(m != null)
+      {
+        synchronized (m) {
+          m.writes.add(new SimpleImmutableEntry<>(key, value));
+        }
+      }
+      else if(value != null)
+        file(p).set(key, value);
+      else
+        file(p).delete(key);
+    } 
+    finally {
+      replaceLock.readLock().unlock();
+    }
+  }
+  /**
+   * Appends the batch to each partition file in one write.
+   */
+  @Override
+  public void storeAll(Map<QID, QMessage> map) {
+    Map<Integer, Map<QID, QMessage>> byPartition = new HashMap<>();
+    for(Entry<QID, QMessage> e : map.entrySet())
+    {
+      int p = partitionOf(e.getKey());
+      Map<QID, QMessage> batch = byPartition.get(p);
+      if(batch == null)
+      {
+        batch = new HashMap<>();
+        byPartition.put(p, batch);
+      }
+      batch.put(e.getKey(), e.getValue());
+    }
+    replaceLock.readLock().lock();
+    try 
+    {
+      for(Entry<Integer, Map<QID, QMessage>> e : byPartition.entrySet())
+      {
+        Migration m = migrations.get(e.getKey());
+        if(m != null)
+        {
+          synchronized (m) {
+            m.writes.addAll(e.getValue().entrySet());
+          }
+        }
+        else
+          file(e.getKey()).putAll(e.getValue());
+      }
+    } 
+    finally {
+      replaceLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void delete(QID key) {
+    write(key, null);
+  }
+
+  @Override
+  public void deleteAll(Collection<QID> keys) {
+    for(QID k : keys)
+    {
+      delete(k);
+    }
+  }
+  /**
+   * Put back the stored messages, on a cold start. Messages of the partitions owned by this member 
+   * are put without writing them again. Others are put to their owner, which stores them, and the
+   * local file is dropped.
+   * @param qMap
+   * @return number of messages loaded
+   */
+  int reload(final IMap<QID, QMessage> qMap)
+  {
+    final int[] count = new int[2];
+    for(Integer p : new TreeSet<>(stored))
+    {
+      Member owner = hz.getPartitionService().getPartition(p).getOwner();
+      final boolean local = owner != null && owner.localMember();
+      file(p).forEach(new BiConsumer<QID, QMessage>() {
+
+        @Override
+        public void accept(QID k, QMessage v) {
+          if (local) {
+            qMap.putTransient(k, v, 0, TimeUnit.SECONDS);
+          }
+          else
+          {
+            qMap.set(k, v);
+            count[1]++;
+          }
+          count[0]++;
+        }
+      });
+      if(!local)
+        drop(p);
+    }
+    log.info("["+queue+"] Reloaded "+count[0]+" stored messages, of which "+count[1]+" to other members");
+    return count[0];
+  }
+  /**
+   * Drop all local files.
+   */
+  void discard()
+  {
+    for(Integer p : new TreeSet<>(stored))
+    {
+      drop(p);
+    }
+  }
+  /**
+   * A partition has migrated in. Writes to it are held till its file is {@linkplain #onMigration(int) replaced}.
+   * @param partition
+   */
+  void beginMigration(int partition)
+  {
+    migrations.putIfAbsent(partition, new Migration());
+  }
+  /**
+   * Hold an entry of a partition migrated in, till {@link #onMigration(int)}. Invoked on the 
+   * partition thread.
+   * @param partition
+   * @param key
+   * @param value
+   */
+  void stage(int partition, QID key, QMessage value)
+  {
+    Migration m = migrations.get(partition);
+    if(m != null)
+      m.staged.put(key, value);
+  }
+  /**
+   * The entries of a partition migrated in are staged. The local file is replaced with the 
+   * {@linkplain #stage(int, QID, QMessage) staged} entries, as the store is not invoked for them, 
+   * and any earlier file is stale. The writes held meanwhile are applied over them.
+   * @param partition
+   */
+  void onMigration(int partition)
+  {
+    replaceLock.writeLock().lock();
+    try 
+    {
+      Migration m = migrations.remove(partition);
+      if(m == null)
+        return;
+      drop(partition);
+      Map<QID, QMessage> entries = new HashMap<>(m.staged);
+      for(Entry<QID, QMessage> w : m.writes)
+      {
+        if(w.getValue() != null)
+          entries.put(w.getKey(), w.getValue());
+        else
+          entries.remove(w.getKey());
+      }
+      if(!entries.isEmpty())
+        file(partition).putAll(entries);
+    } 
+    finally {
+      replaceLock.writeLock().unlock();
+    }
+  }
+  /**
+   * The entries of a partition migrated in could not be staged. The writes held are applied
+   * to the existing file.
+   * @param partition
+   */
+  void cancelMigration(int partition)
+  {
+    replaceLock.writeLock().lock();
+    try 
+    {
+      Migration m = migrations.remove(partition);
+      if(m == null)
+        return;
+      for(Entry<QID, QMessage> w : m.writes)
+      {
+        if(w.getValue() != null)
+          file(partition).set(w.getKey(), w.getValue());
+        else
+          file(partition).delete(w.getKey());
+      }
+    } 
+    finally {
+      replaceLock.writeLock().unlock();
+    }
+  }
+  /**
+   * A partition has migrated out. Its local file is dropped, so that it is not reloaded
+   * on a restart.
+   * @param partition
+   */
+  void onMigrationOut(int partition)
+  {
+    replaceLock.writeLock().lock();
+    try {
+      migrations.remove(partition);
+      drop(partition);
+    } finally {
+      replaceLock.writeLock().unlock();
+    }
+  }
+  private void drop(int partition)
+  {
+    synchronized (files) {
+      close(partition);
+      File[] list = dir.listFiles();
+      if(list != null)
+      {
+        for(File f : list)
+        {
+          if(partitionOfFile(f.getName()) == partition && !f.delete())
+            log.warn("["+queue+"] Unable to delete "+f);
+        }
+      }
+      stored.remove(partition);
+    }
+  }
+}
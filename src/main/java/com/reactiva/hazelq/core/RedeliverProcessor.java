@@ -0,0 +1,153 @@
+/* ============================================================================
+*
+* FILE: RedeliverProcessor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+/**
+ * Returns an in flight message to the queue, either on a consumer failure or on 
+ * expiry of its visibility timeout. The redelivery count is incremented on the entry
+ * if so specified. The backup is sent only for the entries actually returned, and it 
+ * sets the count incremented on the owner, rather than incrementing it again.
+ */
+class RedeliverProcessor implements EntryProcessor<QID, QMessage>, EntryBackupProcessor<QID, QMessage>, IdentifiedDataSerializable, HazelcastInstanceAware {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+  private String queue;
+  private boolean redelivery;
+  private transient HazelcastInstance hzInstance;
+  /**
+   * Delivery counts set on the owner, to be applied on the backup. Shared by the
+   * partition threads, when executed on multiple keys.
+   */
+  private final Map<QID, Integer> counts = new ConcurrentHashMap<>();
+  
+  public RedeliverProcessor() {
+  }
+  /**
+   * 
+   * @param queue
+   * @param redelivery whether to increment the redelivery count
+   */
+  RedeliverProcessor(String queue, boolean redelivery) {
+    this.queue = queue;
+    this.redelivery = redelivery;
+  }
+
+  @Override
+  public Object process(Entry<QID, QMessage> entry) {
+    QMessage m = entry.getValue();
+    if(m == null)
+      return null;
+    QueueService service = QueueService.of(hzInstance);
+    if(service == null || !service.released(queue, entry.getKey()))
+      return null;
+    if(redelivery)
+    {
+      m.incrRedelivery();
+      entry.setValue(m);
+      counts.put(entry.getKey(), m.getSubmitCount());
+    }
+    return null;
+  }
+
+  @Override
+  public void processBackup(Entry<QID, QMessage> entry) {
+    QMessage m = entry.getValue();
+    Integer count = counts.get(entry.getKey());
+    if(m != null && count != null)
+    {
+      m.setSubmitCount(count);
+      entry.setValue(m);
+    }
+  }
+
+  /**
+   * Invoked after processing on the owner. No backup if no entry was changed.
+   */
+  @Override
+  public EntryBackupProcessor<QID, QMessage> getBackupProcessor() {
+    return counts.isEmpty() ? null : this;
+  }
+
+  @Override
+  public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+    this.hzInstance = hazelcastInstance;
+  }
+
+  @Override
+  public void writeData(ObjectDataOutput out) throws IOException {
+    out.writeUTF(queue);
+    out.writeBoolean(redelivery);
+    Map<QID, Integer> snapshot = new HashMap<>(counts);
+    out.writeInt(snapshot.size());
+    for(Entry<QID, Integer> e : snapshot.entrySet())
+    {
+      out.writeLong(e.getKey().getMostSignificantBits());
+      out.writeLong(e.getKey().getLeastSignificantBits());
+      out.writeInt(e.getValue());
+    }
+  }
+
+  @Override
+  public void readData(ObjectDataInput in) throws IOException {
+    queue = in.readUTF();
+    redelivery = in.readBoolean();
+    int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      QID key = new QID(in.readLong(), in.readLong());
+      counts.put(key, in.readInt());
+    }
+  }
+
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+
+  @Override
+  public int getId() {
+    return QSerializableFactory.REDELIVER_PROCESSOR;
+  }
+
+}
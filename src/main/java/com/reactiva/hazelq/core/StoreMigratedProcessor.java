@@ -0,0 +1,110 @@
+/* ============================================================================
+*
+* FILE: StoreMigratedProcessor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+/**
+ * Stages the entries of a partition migrated in, for its {@linkplain QueueStore} file. Runs on 
+ * the partition thread of the new owner, and leaves the entries unchanged.
+ */
+class StoreMigratedProcessor implements EntryProcessor<QID, QMessage>, IdentifiedDataSerializable, HazelcastInstanceAware {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+  private String queue;
+  private int partition;
+  private transient HazelcastInstance hzInstance;
+  
+  public StoreMigratedProcessor() {
+  }
+  /**
+   * 
+   * @param queue
+   * @param partition the partition of all the keys processed
+   */
+  StoreMigratedProcessor(String queue, int partition) {
+    this.queue = queue;
+    this.partition = partition;
+  }
+
+  @Override
+  public Object process(Entry<QID, QMessage> entry) {
+    QMessage m = entry.getValue();
+    if(m == null)
+      return null;
+    QueueStore store = QueueStore.get(hzInstance, queue);
+    if(store != null)
+      store.stage(partition, entry.getKey(), m);
+    return null;
+  }
+
+  @Override
+  public EntryBackupProcessor<QID, QMessage> getBackupProcessor() {
+    return null;
+  }
+
+  @Override
+  public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+    this.hzInstance = hazelcastInstance;
+  }
+
+  @Override
+  public void writeData(ObjectDataOutput out) throws IOException {
+    out.writeUTF(queue);
+    out.writeInt(partition);
+  }
+
+  @Override
+  public void readData(ObjectDataInput in) throws IOException {
+    queue = in.readUTF();
+    partition = in.readInt();
+  }
+
+  @Override
+  public int getFactoryId() {
+    return QSerializableFactory.FACTORY_ID;
+  }
+
+  @Override
+  public int getId() {
+    return QSerializableFactory.STORE_MIGRATED_PROCESSOR;
+  }
+
+}
@@ -28,8 +28,13 @@ SOFTWARE.
 */
 package com.reactiva.hazelq.core;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.PostConstruct;
 
@@ -42,15 +47,22 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.pool.KryoFactory;
 import com.esotericsoftware.kryo.pool.KryoPool;
 import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.IQueue;
-import com.hazelcast.core.ISet;
+import com.hazelcast.core.IAtomicLong;
+import com.hazelcast.core.IFunction;
 import com.reactiva.hazelq.utils.TimeUIDGen;
-
+/**
+ * Generates cluster wide unique, time ordered IDs. Each member leases a range of 
+ * timestamps (in 100 ns units) from a single cluster wide atomic long, and then mints
+ * IDs locally from that range. A lease is renewed when it is exhausted, or once it gets 
+ * older than the configured TTL; so the ordering across members is off by at most a
+ * lease, while generating an ID is a local counter increment.
+ */
 public class UIDGenerator {
 
   @Autowired
   private HazelcastInstance hzService;
   private KryoPool kryoPool;
+  private IAtomicLong leaseSeq;
   @PostConstruct
   private void init()
   {
@@ -63,75 +75,128 @@ public class UIDGenerator {
         return kryo;
       }
     }).softReferences().build());
+    
+    leaseSeq = hzService.getAtomicLong(UIDGenerator.class.getName());
+    leaseTTLNanos = TimeUnit.MILLISECONDS.toNanos(leaseTTLMillis);
   }
   /**
-   * Fetch (and generate if needed) next cluster wide unique time based ID.
-   * @return a type 1 UUID
-   * @throws InterruptedException
+   * A range [next, end) of timestamps leased by this member.
    */
-  public UUID getNextUID() throws InterruptedException
+  private static class Lease
   {
-    IQueue<UUID> uidQ = hzService.getQueue(UIDGenerator.class.getName());
-    UUID uid = uidQ.poll();
-    while(uid == null)
+    Lease(long start, long end) {
+      this.next = new AtomicLong(start);
+      this.end = end;
+      this.leasedAt = System.nanoTime();
+    }
+    final AtomicLong next;
+    final long end;
+    final long leasedAt;
+    /**
+     * Reserve count consecutive timestamps.
+     * @param count
+     * @return the first timestamp, or -1 if the lease cannot accommodate.
+     */
+    long reserve(int count)
     {
-      Lock lock = hzService.getLock(UIDGenerator.class.getName());
-      if(lock.tryLock())
+      long t;
+      do
       {
-        try
-        {
-          uid = uidQ.poll();
-          if(uid == null)
-          {
-            uid = createNextBatch(uidQ);
-          }
-        }
-        finally
-        {
-          lock.unlock();
-        }
-      }
-      else
-      {
-        uid = uidQ.poll();
-      }
+        t = next.get();
+        if(t + count > end)
+          return -1;
+      } while(!next.compareAndSet(t, t + count));
+      return t;
+    }
+  }
+  /**
+   * Advances the cluster wide lease sequence to at least the current time of the 
+   * requesting member, and then by the lease size. Executed on the partition owning the
+   * atomic long, hence the lease is allocated in one round trip.
+   */
+  private static class LeaseFunction implements IFunction<Long, Long>
+  {
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+    private final long now;
+    private final long size;
+    LeaseFunction(long now, long size) {
+      this.now = now;
+      this.size = size;
+    }
+    @Override
+    public Long apply(Long last) {
+      return Math.max(last, now) + size;
     }
     
-    return uid;
   }
-
-  @Value("${uid.batch.gen:100000}")
-  private int genBatchSize;
+  private volatile Lease lease = new Lease(0, 0);
+  private final Lock leaseLock = new ReentrantLock();
   
-  private static final Logger log = LoggerFactory.getLogger(UIDGenerator.class);
-  //this is synchronized
-  private UUID createNextBatch(IQueue<UUID> uidQ) {
-    ISet<Long> lastTS = hzService.getSet(UIDGenerator.class.getName());
-    long startOffset;
-    if(lastTS.isEmpty())
+  private long reserve(int count)
+  {
+    long t;
+    Lease l = lease;
+    if(System.nanoTime() - l.leasedAt <= leaseTTLNanos && (t = l.reserve(count)) != -1)
+      return t;
+    
+    leaseLock.lock();
+    try
     {
-      startOffset = System.currentTimeMillis();
+      l = lease;
+      if(System.nanoTime() - l.leasedAt <= leaseTTLNanos && (t = l.reserve(count)) != -1)
+        return t;
+      
+      long size = Math.max(count, genBatchSize);
+      long end = leaseSeq.alterAndGet(new LeaseFunction(TimeUIDGen.currentTicks(), size));
+      l = new Lease(end - size, end);
+      t = l.reserve(count);
+      lease = l;
+      log.debug("Leased UID range ["+(end - size)+", "+end+")");
+      return t;
     }
-    else
+    finally
     {
-      startOffset = lastTS.iterator().next();
+      leaseLock.unlock();
     }
-    
-    log.info("createNextBatch with startOffset: "+startOffset);
-    for(int i=0;i<genBatchSize;i++)
+  }
+  /**
+   * Fetch (and lease if needed) next cluster wide unique time based ID.
+   * @return a type 1 UUID
+   * @throws InterruptedException
+   */
+  public UUID getNextUID() throws InterruptedException
+  {
+    return TimeUIDGen.getTimeUUIDFromTicks(reserve(1));
+  }
+  /**
+   * Fetch (and lease if needed) a block of next cluster wide unique time based IDs,
+   * from a single reservation.
+   * @param count
+   * @return type 1 UUIDs, in order
+   * @throws InterruptedException
+   */
+  public List<UUID> getNextUIDs(int count) throws InterruptedException
+  {
+    long t = reserve(count);
+    List<UUID> uids = new ArrayList<>(count);
+    for(int i=0; i<count; i++)
     {
-      UUID u = TimeUIDGen.getTimeUUID(startOffset);
-      uidQ.offer(u);
-      
-      startOffset++;
+      uids.add(TimeUIDGen.getTimeUUIDFromTicks(t + i));
     }
-    
-    lastTS.clear();
-    lastTS.add(startOffset);
-    
-    return uidQ.poll();
-    
+    return uids;
   }
+
+  @Value("${uid.batch.gen:100000}")
+  private int genBatchSize;
+  @Value("${uid.lease.ttl.ms:100}")
+  private long leaseTTLMillis;
+  private long leaseTTLNanos;
+  
+  private static final Logger log = LoggerFactory.getLogger(UIDGenerator.class);
+  
   public KryoPool getKryoPool() {
     return kryoPool;
   }
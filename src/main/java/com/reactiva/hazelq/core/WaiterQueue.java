@@ -0,0 +1,183 @@
+/* ============================================================================
+*
+* FILE: WaiterQueue.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * Consumers parked on an empty queue, in FIFO order. Each signal hands off to exactly 
+ * one waiter, so a new head wakes a single consumer instead of all of them. The time
+ * from a signal till the signalled waiter runs is recorded as the handoff latency.
+ * <p>
+ * A consumer should {@linkplain #register() register} before its last attempt to claim,
+ * and {@linkplain #cancel(Waiter) cancel} once done, so that a signal in between is not lost.
+ */
+final class WaiterQueue {
+
+  private static final int WAITING = 0, SIGNALLED = 1, CANCELLED = 2;
+  
+  static final class Waiter
+  {
+    private final Thread thread = Thread.currentThread();
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    private volatile long signalledAt;
+    //accessed by the waiting thread only
+    private boolean consumed;
+    
+    private Waiter() {
+    }
+  }
+  
+  private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+  private final AtomicLong handoffs = new AtomicLong();
+  private final AtomicLong handoffNanos = new AtomicLong();
+  private final AtomicLong handoffNanosMax = new AtomicLong();
+  
+  /**
+   * Enqueue the current thread as a waiter.
+   * @return
+   */
+  Waiter register()
+  {
+    Waiter w = new Waiter();
+    waiters.offer(w);
+    return w;
+  }
+  /**
+   * Park till signalled, or the timeout elapses.
+   * @param w
+   * @param nanos timeout, or 0 to wait indefinitely
+   * @return true if signalled
+   * @throws InterruptedException
+   */
+  boolean await(Waiter w, long nanos) throws InterruptedException
+  {
+    final long deadline = System.nanoTime() + nanos;
+    while(w.state.get() == WAITING)
+    {
+      if(nanos > 0)
+      {
+        long remaining = deadline - System.nanoTime();
+        if(remaining <= 0)
+          break;
+        LockSupport.parkNanos(this, remaining);
+      }
+      else
+      {
+        LockSupport.park(this);
+      }
+      if(Thread.interrupted())
+        throw new InterruptedException();
+    }
+    if(w.state.get() == SIGNALLED)
+    {
+      recordHandoff(System.nanoTime() - w.signalledAt);
+      w.consumed = true;
+      return true;
+    }
+    return false;
+  }
+  /**
+   * Withdraw the waiter. A signal that arrived after the waiter stopped waiting is 
+   * passed on to the next one.
+   * @param w
+   */
+  void cancel(Waiter w)
+  {
+    if(w.state.compareAndSet(WAITING, CANCELLED))
+      waiters.remove(w);
+    else if(!w.consumed)
+      signal();
+  }
+  /**
+   * Wake up the longest waiting consumer.
+   * @return false if there was no one waiting
+   */
+  boolean signal()
+  {
+    Waiter w;
+    while((w = waiters.poll()) != null)
+    {
+      w.signalledAt = System.nanoTime();
+      if(w.state.compareAndSet(WAITING, SIGNALLED))
+      {
+        LockSupport.unpark(w.thread);
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Wake up all waiting consumers.
+   */
+  void signalAll()
+  {
+    while(signal());
+  }
+  
+  private void recordHandoff(long nanos)
+  {
+    handoffs.incrementAndGet();
+    handoffNanos.addAndGet(nanos);
+    long max;
+    while(nanos > (max = handoffNanosMax.get()) && !handoffNanosMax.compareAndSet(max, nanos));
+  }
+  /**
+   * 
+   * @return number of signals handed off to a waiter
+   */
+  long getHandoffCount()
+  {
+    return handoffs.get();
+  }
+  /**
+   * 
+   * @return mean latency from signal to wakeup, in nanoseconds
+   */
+  long getHandoffNanosAvg()
+  {
+    long n = handoffs.get();
+    return n == 0 ? 0 : handoffNanos.get() / n;
+  }
+  /**
+   * 
+   * @return max latency from signal to wakeup, in nanoseconds
+   */
+  long getHandoffNanosMax()
+  {
+    return handoffNanosMax.get();
+  }
+  
+  @Override
+  public String toString() {
+    return "handoffs=" + getHandoffCount() + ", avg(ns)=" + getHandoffNanosAvg() + ", max(ns)=" + getHandoffNanosMax();
+  }
+}
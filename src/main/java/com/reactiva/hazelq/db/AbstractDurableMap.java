@@ -33,6 +33,9 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public abstract class AbstractDurableMap<K,V> implements Map<K, V>, Closeable {
 
@@ -50,12 +53,33 @@ public abstract class AbstractDurableMap<K,V> implements Map<K, V>, Closeable {
       throw new IllegalArgumentException(e);
     }
   }
+  /**
+   * 
+   * @param dir
+   * @param fileName
+   * @param segmentBytes size of the log segment files
+   * @param sync when writes are forced to disk
+   */
+  public AbstractDurableMap(String dir, String fileName, int segmentBytes, SyncPolicy sync)
+  {
+    try {
+      file = new MappedFile(dir, fileName, segmentBytes, sync, MappedFile.DEFAULT_SYNC_INTERVAL_MS);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
   /**
    * Generic serialization scheme for key.
    * @param key
    * @return
    */
   protected abstract String keyToString(K key);
+  /**
+   * Generic de-serialization scheme for key.
+   * @param key
+   * @return
+   */
+  protected abstract K stringToKey(String key);
   /**
    * Generic de-serialization scheme for value.
    * @param val
@@ -120,6 +144,63 @@ public abstract class AbstractDurableMap<K,V> implements Map<K, V>, Closeable {
     return bytesToValue(val);
   }
 
+  /**
+   * Put without waiting for the write to be committed. Concurrent puts are committed together.
+   * @param key
+   * @param value
+   * @return future of the previous value
+   */
+  public Future<V> putAsync(K key, V value) {
+    return file.writeAsync(keyToString(key), valueToBytes(value)).thenApply(new Function<byte[], V>() {
+
+      @Override
+      public V apply(byte[] t) {
+        return bytesToValue(t);
+      }
+    });
+  }
+
+  /**
+   * Put without returning the previous value.
+   * @param key
+   * @param value
+   */
+  public void set(K key, V value) {
+    try {
+      file.writeAll(new String[]{keyToString(key)}, new byte[][]{valueToBytes(value)});
+    } catch (IOException e) {
+      throw new MapIOException(e);
+    }
+  }
+  /**
+   * Remove without returning the previous value.
+   * @param key
+   */
+  public void delete(K key) {
+    try {
+      file.delete(keyToString(key));
+    } catch (IOException e) {
+      throw new MapIOException(e);
+    }
+  }
+  /**
+   * Visit the entries in the order they were written. Writes are blocked while visiting.
+   */
+  @Override
+  public void forEach(final BiConsumer<? super K, ? super V> action) {
+    try {
+      file.forEach(new BiConsumer<String, byte[]>() {
+
+        @Override
+        public void accept(String k, byte[] v) {
+          action.accept(stringToKey(k), bytesToValue(v));
+        }
+      });
+    } catch (IOException e) {
+      throw new MapIOException(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public V remove(Object key) {
@@ -134,11 +215,19 @@ public abstract class AbstractDurableMap<K,V> implements Map<K, V>, Closeable {
 
   @Override
   public void putAll(Map<? extends K, ? extends V> m) {
+    String[] keys = new String[m.size()];
+    byte[][] values = new byte[keys.length][];
+    int i = 0;
     for(java.util.Map.Entry<? extends K, ? extends V> e : m.entrySet())
     {
-      put(e.getKey(), e.getValue());
+      keys[i] = keyToString(e.getKey());
+      values[i++] = valueToBytes(e.getValue());
+    }
+    try {
+      file.writeAll(keys, values);
+    } catch (IOException e) {
+      throw new MapIOException(e);
     }
-    
   }
 
   @Override
@@ -41,6 +41,11 @@ public class BasicDurableMap extends AbstractDurableMap<String, byte[]> {
     return key;
   }
 
+  @Override
+  protected String stringToKey(String key) {
+    return key;
+  }
+
   @Override
   protected byte[] bytesToValue(byte[] val) {
     return val;
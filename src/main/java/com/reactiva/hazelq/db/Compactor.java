@@ -1,114 +1,348 @@
+/* ============================================================================
+*
+* FILE: Compactor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
 package com.reactiva.hazelq.db;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.Callable;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.reactiva.hazelq.db.SegmentedLog.Segment;
+
 /**
- * @Experimental
- * @author esutdal
- *
+ * Compacts sealed log segments of a {@linkplain MappedFile} in the background. Live records (and 
+ * tombstones still shadowing older segments) of a segment are copied to a new file, while readers
+ * and writers carry on with the old segment. The write lock is taken only to swap the files and
+ * re-point the index. The copy is throttled to a configured rate.
+ * <p>
+ * A segment is compacted in place, keeping its id, so that the log order is preserved for an index 
+ * rebuild. Records superseded during the copy are left as garbage in the new segment.
  */
-class Compactor implements Callable<Void> {
+class Compactor implements Runnable {
 
+	private static final Logger log = LoggerFactory.getLogger(Compactor.class);
+	private static final int COPY_BUFFER = 256 * 1024;
+	
 	private final MappedFile mapFile;
+	private final double threshold;
+	final long intervalMillis;
+	private final long bytesPerSec;
+	private volatile boolean running = true;
+	
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private final AtomicLong copiedBytes = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+	private volatile long lastPauseMillis;
+	
+	/**
+	 * Address change of a live record.
+	 */
+	private static class Moved
+	{
+		final byte[] key;
+		final long from;
+		final long to;
+		final int len;
+		Moved(byte[] key, long from, long to, int len) {
+			this.key = key;
+			this.from = from;
+			this.to = to;
+			this.len = len;
+		}
+	}
 	/**
 	 * 
 	 * @param mapFile
+	 * @param intervalMillis
+	 * @param threshold fraction of dead bytes in a segment to compact it
+	 * @param bytesPerSec copy rate, 0 or less for unthrottled
 	 */
-	public Compactor(MappedFile mapFile){
+	Compactor(MappedFile mapFile, long intervalMillis, double threshold, long bytesPerSec) {
 		this.mapFile = mapFile;
+		this.intervalMillis = intervalMillis;
+		this.threshold = threshold;
+		this.bytesPerSec = bytesPerSec;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			compact();
+		} catch (Exception e) {
+			log.error("["+mapFile.fileName+"] Compaction failed", e);
+		}
+	}
+	/**
+	 * Stop, waiting for a pass in progress to end.
+	 */
+	void stop()
+	{
+		running = false;
+		synchronized (this) {
+			//the pass checks running between records
+		}
+	}
+	/**
+	 * Compact the sealed segments having dead bytes above the threshold.
+	 * @throws IOException
+	 */
+	synchronized void compact() throws IOException
+	{
+		for(Segment s : mapFile.dataLog().sealedSegments())
+		{
+			if(!running)
+				break;
+			if(!s.measured)
+			{
+				measure(s);
+			}
+			if(s.limit > 0 && s.dead.get() >= s.limit * threshold)
+			{
+				compact(s);
+			}
+		}
+	}
+	private boolean isLive(byte[] key, long address)
+	{
+		mapFile.fileLock.readLock().lock();
+		try {
+			return mapFile.index().get(key) == address;
+		} finally {
+			mapFile.fileLock.readLock().unlock();
+		}
+	}
+	/**
+	 * Count the dead bytes of a segment, not accounted since open.
+	 * @param s
+	 */
+	private void measure(Segment s)
+	{
+		ByteBuffer buf = s.buffer.duplicate();
+		long dead = 0;
+		int pos = 0;
+		while(pos < s.limit && running)
+		{
+			int keyLen = buf.getInt(pos + 5);
+			int valLen = buf.getInt(pos + 9);
+			int len = SegmentedLog.HEADER_LEN + keyLen + Math.max(valLen, 0);
+			if(valLen == SegmentedLog.TOMBSTONE)
+			{
+				dead += len;
+			}
+			else
+			{
+				byte[] key = new byte[keyLen];
+				buf.position(pos + SegmentedLog.HEADER_LEN);
+				buf.get(key);
+				if(!isLive(key, SegmentedLog.address(s.id, pos)))
+					dead += len;
+			}
+			pos += len;
+		}
+		if(running)
+		{
+			s.dead.set(dead);
+			s.measured = true;
+		}
+	}
+	private void throttle(long copied, long startNanos) throws IOException
+	{
+		if(bytesPerSec <= 0)
+			return;
+		long due = TimeUnit.SECONDS.toNanos(1) * copied / bytesPerSec;
+		long ahead = due - (System.nanoTime() - startNanos);
+		if(ahead > 0)
+		{
+			try {
+				TimeUnit.NANOSECONDS.sleep(ahead);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Compaction interrupted", e);
+			}
+		}
 	}
-	private void deleteIndices(Set<Long> offsets) throws IOException 
-	  {
-	    String tmpFileName = mapFile.fileName+"_i_"+System.currentTimeMillis();
-	    WritableByteChannel bkpFile = Channels.newChannel(new FileOutputStream(File.createTempFile(tmpFileName, null)));
-	    mapFile.getIndexFile().getChannel().transferTo(0, mapFile.getIndexFile().length(), bkpFile);
-	    
-	    
-	    
-	    long pos = 0;
-	    mapFile.getIndexFile().seek(pos);
-	    int len = 13;
-	    for(Long off : offsets)
-	    {
-	      pos += off;
-	      mapFile.getIndexFile().seek(pos);
-	      
-	      //1 + 4 + array.len + 8
-	      mapFile.getIndexFile().readBoolean();
-	      len += mapFile.getIndexFile().readInt();
-	      
-	      mapFile.getIndexFile().seek(pos);//go back
-	      long nextPos = pos + len;
-	      
-	      mapFile.getIndexFile().getChannel().transferTo(pos, mapFile.getIndexFile().length(), bkpFile);
-	      
-	      len = 13;
-	    }
-	  }
-	  private void deleteData(Set<Long> offsets) throws FileNotFoundException, IOException {
-	    String tmpFileName = mapFile.fileName+"_d_"+System.currentTimeMillis();
-	    WritableByteChannel bkpFile = Channels.newChannel(new FileOutputStream(File.createTempFile(tmpFileName, null)));
-	    mapFile.getDataFile().getChannel().transferTo(0, mapFile.getDataFile().length(), bkpFile);
-	  }
 	/**
-	   * @WIP
-	   * Compact the files by removing fragmentation caused by deleted records.
-	   * This is an expensive operation and should be used with discretion.
-	   * @throws IOException 
-	   */
-	  private void compact() throws IOException {
+	 * Copy the records to keep into a new file, then swap.
+	 * @param s
+	 * @throws IOException
+	 */
+	private void compact(Segment s) throws IOException
+	{
+		final SegmentedLog dataLog = mapFile.dataLog();
+		final boolean oldest = dataLog.oldestSegment() == s.id;
+		final File tmp = dataLog.compactionFile(s.id);
+		final List<Moved> moved = new ArrayList<>();
+		final long start = System.nanoTime();
+		
+		ByteBuffer src = s.buffer.duplicate();
+		ByteBuffer out = ByteBuffer.allocateDirect(COPY_BUFFER);
+		int pos = 0, newPos = 0;
+		//bytes copied in this pass, for throttling
+		long copied = 0;
+		boolean done = false;
+		try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw"))
+		{
+			FileChannel ch = raf.getChannel();
+			while(pos < s.limit && running)
+			{
+				int keyLen = src.getInt(pos + 5);
+				int valLen = src.getInt(pos + 9);
+				int len = SegmentedLog.HEADER_LEN + keyLen + Math.max(valLen, 0);
+				byte[] key = new byte[keyLen];
+				src.position(pos + SegmentedLog.HEADER_LEN);
+				src.get(key);
+				
+				long from = SegmentedLog.address(s.id, pos);
+				boolean keep;
+				if(valLen == SegmentedLog.TOMBSTONE)
+				{
+					//older segments may still have the key
+					keep = !oldest && isLive(key, HashIndex.NOT_FOUND);
+				}
+				else
+				{
+					keep = isLive(key, from);
+				}
+				if(keep)
+				{
+					if(len > out.remaining())
+					{
+						flush(out, ch);
+						if(len > out.capacity())
+						{
+							out = ByteBuffer.allocateDirect(len);
+						}
+					}
+					src.limit(pos + len).position(pos);
+					out.put(src);
+					src.limit(src.capacity());
+					if(valLen != SegmentedLog.TOMBSTONE)
+					{
+						moved.add(new Moved(key, from, SegmentedLog.address(s.id, newPos), len));
+					}
+					newPos += len;
+					copiedBytes.addAndGet(len);
+					copied += len;
+					throttle(copied, start);
+				}
+				pos += len;
+			}
+			flush(out, ch);
+			ch.force(true);
+			done = running;
+		}
+		finally {
+			if(!done)
+				Files.deleteIfExists(tmp.toPath());
+		}
+		
+		if (done) {
+			if(newPos == 0)
+				Files.delete(tmp.toPath());
+			swap(s, newPos == 0 ? null : tmp, newPos, moved);
+		}
+	}
+	private static void flush(ByteBuffer out, FileChannel ch) throws IOException
+	{
+		out.flip();
+		while(out.hasRemaining())
+		{
+			ch.write(out);
+		}
+		out.clear();
+	}
+	/**
+	 * Writes are paused only here.
+	 */
+	private void swap(Segment s, File compacted, int limit, List<Moved> moved) throws IOException
+	{
+		int before = s.limit;
+		long t = System.currentTimeMillis();
 		mapFile.fileLock.writeLock().lock();
-	    try
-	    {
-	      //TODO: compactor. index files have a boolean true
-
-	      Set<Long> delIdxList = new TreeSet<>();
-	      Set<Long> delDatList = new TreeSet<>();
-	      
-	      try(IndexIterator idxIter = new IndexIterator(mapFile))
-	      {
-	        if(!idxIter.isEmpty())
-	        {
-	          Long offset;
-	          while(idxIter.hasNext())
-	          {
-	            offset = idxIter.next();
-	            if(idxIter.isDeleted())
-	            {
-	              delDatList.add(offset);
-	              delIdxList.add(idxIter.getIdxOffset());
-	            }
-	            
-	                       
-	          }
-	        }
-	      } catch (IOException e) {
-	        throw e;
-	      }
-	      
-	      deleteIndices(delIdxList);
-	      deleteData(delDatList);
-	      mapFile.clearCache();
-	    }
-	    finally
-	    {
-	    	mapFile.fileLock.writeLock().unlock();
-	    }
-	    
-	  }
-	  
-	
+		try 
+		{
+			Segment ns = mapFile.dataLog().replace(s, compacted, limit);
+			HashIndex index = mapFile.index();
+			long stale = 0;
+			for(Moved m : moved)
+			{
+				if(!index.relocate(m.key, m.from, m.to))
+				{
+					stale += m.len;
+				}
+			}
+			if(ns != null)
+			{
+				//superseded while copying
+				ns.dead.set(stale);
+			}
+		} 
+		finally {
+			mapFile.fileLock.writeLock().unlock();
+			lastPauseMillis = System.currentTimeMillis() - t;
+		}
+		reclaimedBytes.addAndGet(before - limit);
+		compactions.incrementAndGet();
+		log.info("["+mapFile.fileName+"] Compacted segment "+s.id+" from "+before+" to "+limit+" bytes. Writes paused "+lastPauseMillis+" ms");
+	}
+	/**
+	 * Total bytes reclaimed by compaction.
+	 * @return
+	 */
+	long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+	/**
+	 * Total bytes of live records copied.
+	 * @return
+	 */
+	long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+	long getCompactions() {
+		return compactions.get();
+	}
+	long getLastPauseMillis() {
+		return lastPauseMillis;
+	}
 	@Override
-	public Void call() throws Exception {
-		compact();
-		return null;
+	public String toString() {
+		return "Compactor [compactions=" + compactions + ", reclaimedBytes=" + reclaimedBytes + ", copiedBytes="
+				+ copiedBytes + ", lastPauseMillis=" + lastPauseMillis + "]";
 	}
-
 }
@@ -0,0 +1,197 @@
+/* ============================================================================
+*
+* FILE: GroupCommit.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces concurrent writes into batches. Writers enqueue their request, and one of them
+ * becomes the leader and {@linkplain #commit(List) commits} all the pending requests together,
+ * while the others wait. The requests arriving meanwhile make up the next batch. So an idle 
+ * writer commits alone, while under contention a single lock hold and sync is paid per batch.
+ */
+abstract class GroupCommit {
+
+	/**
+	 * A write request, of one or more records. A null value is a remove.
+	 */
+	static final class Write extends CompletableFuture<byte[]>
+	{
+		final String[] keys;
+		final byte[][] keyBytes;
+		final byte[][] values;
+		/**
+		 * Whether to return the previous value of the (single) key.
+		 */
+		final boolean previous;
+		private byte[] result;
+		private Throwable error;
+		
+		Write(String[] keys, byte[][] values, boolean previous) {
+			this.keys = keys;
+			this.values = values;
+			this.previous = previous;
+			keyBytes = new byte[keys.length][];
+			for (int i = 0; i < keys.length; i++) {
+				keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+			}
+		}
+		Write(String key, byte[] value) {
+			this(new String[]{key}, new byte[][]{value}, true);
+		}
+		void setResult(byte[] result) {
+			this.result = result;
+		}
+		void setError(Throwable error) {
+			this.error = error;
+		}
+		/**
+		 * Complete the future, after the batch is committed.
+		 */
+		void done()
+		{
+			if(error != null)
+				completeExceptionally(error);
+			else
+				complete(result);
+		}
+	}
+	
+	private final ConcurrentLinkedQueue<Write> pending = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock leader = new ReentrantLock();
+	private final int maxBatch;
+	
+	/**
+	 * 
+	 * @param maxBatch maximum requests in a batch
+	 */
+	GroupCommit(int maxBatch) {
+		this.maxBatch = maxBatch;
+	}
+	/**
+	 * Apply the batch and complete each request.
+	 * @param batch
+	 */
+	protected abstract void commit(List<Write> batch);
+	
+	/**
+	 * Enqueue a request, and commit pending requests if there is no leader. The
+	 * returned future may be completed by another writer.
+	 * @param w
+	 * @return
+	 */
+	Write submit(Write w)
+	{
+		pending.add(w);
+		drainIfIdle();
+		return w;
+	}
+	/**
+	 * Enqueue a request and wait for it to be committed.
+	 * @param w
+	 * @return the result of the request
+	 * @throws IOException
+	 */
+	byte[] execute(Write w) throws IOException
+	{
+		pending.add(w);
+		if(!w.isDone())
+		{
+			leader.lock();
+			try {
+				//if not done, it is still pending as the leader polls only holding the lock
+				if(!w.isDone())
+					drain();
+			} finally {
+				leader.unlock();
+			}
+			drainIfIdle();
+		}
+		return get(w);
+	}
+	/**
+	 * Unwrap the result of a request.
+	 * @param w
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] get(Write w) throws IOException
+	{
+		try {
+			return w.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if(t instanceof IOException)
+				throw (IOException) t;
+			if(t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			throw new IOException(t);
+		}
+	}
+	/**
+	 * Lead the requests enqueued by writers that could not.
+	 */
+	private void drainIfIdle()
+	{
+		while(!pending.isEmpty() && leader.tryLock())
+		{
+			try {
+				drain();
+			} finally {
+				leader.unlock();
+			}
+		}
+	}
+	private void drain()
+	{
+		List<Write> batch = new ArrayList<>();
+		Write w;
+		while((w = pending.poll()) != null)
+		{
+			batch.add(w);
+			if(batch.size() >= maxBatch)
+			{
+				commit(batch);
+				batch = new ArrayList<>();
+			}
+		}
+		if(!batch.isEmpty())
+			commit(batch);
+	}
+}
@@ -0,0 +1,362 @@
+/* ============================================================================
+*
+* FILE: HashIndex.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.reactiva.hazelq.utils.DirectMem;
+
+/**
+ * A persistent open addressing hash index from key to log record address, over a memory mapped 
+ * file. Slots are probed linearly by a hash of the key bytes, and a hash match is confirmed against
+ * the key stored in the log record. Removed slots are marked deleted, and reclaimed on resize.
+ * <p>
+ * File layout: <pre>[magic:4][version:4][capacity:4][size:4][deleted:4][clean:1][logEnd:8] .. (header of 64 bytes)
+ * [hash:4][state:4][address:8] * capacity</pre>
+ * The index is trusted on open only if it was closed cleanly at the same log end, else it is rebuilt.
+ * <p>
+ * Not thread safe for mutations. Concurrent gets are safe, but not with a concurrent mutation.
+ */
+class HashIndex implements Closeable {
+
+	static final String IDX_FILE_SUFF = ".idx";
+	static final long NOT_FOUND = -1;
+	
+	private static final Logger log = LoggerFactory.getLogger(HashIndex.class);
+	private static final int MAGIC = 0x48514958;
+	private static final int VERSION = 1;
+	private static final int HEADER_LEN = 64;
+	private static final int SLOT_LEN = 16;
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MAX_CAPACITY = 1 << 26;
+	private static final float LOAD_FACTOR = 0.7f;
+	
+	private static final int EMPTY = 0, USED = 1, DELETED = 2;
+	
+	private static final int H_MAGIC = 0, H_VERSION = 4, H_CAPACITY = 8, H_SIZE = 12, H_DELETED = 16, H_CLEAN = 20, H_LOGEND = 21;
+	/**
+	 * Checks if a log record address holds the given key.
+	 */
+	interface KeyMatcher
+	{
+		boolean matches(long address, byte[] key);
+	}
+	
+	private final File file;
+	private final KeyMatcher matcher;
+	private MappedByteBuffer buffer;
+	private int capacity, mask, size, deleted;
+	private final boolean opened;
+	
+	/**
+	 * Open, or create, the index file.
+	 * @param file
+	 * @param matcher
+	 * @throws IOException
+	 */
+	HashIndex(File file, KeyMatcher matcher) throws IOException {
+		this.file = file;
+		this.matcher = matcher;
+		boolean ok = false;
+		if(file.exists() && file.length() >= HEADER_LEN)
+		{
+			buffer = map(file, file.length());
+			ok = buffer.getInt(H_MAGIC) == MAGIC && buffer.getInt(H_VERSION) == VERSION
+					&& file.length() == HEADER_LEN + (long) buffer.getInt(H_CAPACITY) * SLOT_LEN;
+			if(ok)
+			{
+				setCapacity(buffer.getInt(H_CAPACITY));
+				size = buffer.getInt(H_SIZE);
+				deleted = buffer.getInt(H_DELETED);
+			}
+			else
+			{
+				log.warn("Discarding unrecognized index file "+file);
+			}
+		}
+		opened = ok;
+		if(!ok)
+		{
+			create(MIN_CAPACITY);
+		}
+	}
+	private static MappedByteBuffer map(File f, long len) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.setLength(len);
+			return raf.getChannel().map(MapMode.READ_WRITE, 0, len);
+		}
+	}
+	private void setCapacity(int cap)
+	{
+		capacity = cap;
+		mask = cap - 1;
+	}
+	private void create(int cap) throws IOException
+	{
+		if(buffer != null)
+			DirectMem.unmap(buffer);
+		//truncate first, so that the slots are zero filled
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+		}
+		buffer = map(file, HEADER_LEN + (long) cap * SLOT_LEN);
+		buffer.putInt(H_MAGIC, MAGIC);
+		buffer.putInt(H_VERSION, VERSION);
+		buffer.putInt(H_CAPACITY, cap);
+		setCapacity(cap);
+		size = 0;
+		deleted = 0;
+		writeCounts();
+	}
+	private void writeCounts()
+	{
+		buffer.putInt(H_SIZE, size);
+		buffer.putInt(H_DELETED, deleted);
+	}
+	/**
+	 * Check if the index is consistent with the log, and mark it in use. If not valid, 
+	 * the index should be {@linkplain #clear() cleared} and rebuilt.
+	 * @param logEnd
+	 * @return
+	 */
+	boolean validate(long logEnd)
+	{
+		boolean valid = opened && buffer.get(H_CLEAN) == 1 && buffer.getLong(H_LOGEND) == logEnd;
+		buffer.put(H_CLEAN, (byte) 0);
+		buffer.force();
+		return valid;
+	}
+	/**
+	 * Remove all entries.
+	 * @throws IOException
+	 */
+	void clear() throws IOException
+	{
+		create(MIN_CAPACITY);
+	}
+	/**
+	 * Spread the hash, as in murmur3 finalizer.
+	 * @param key
+	 * @return
+	 */
+	static int hash(byte[] key)
+	{
+		int h = 0x811C9DC5;
+		for(byte b : key)
+		{
+			h = (h ^ b) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+	private static int slot(int i)
+	{
+		return HEADER_LEN + i * SLOT_LEN;
+	}
+	/**
+	 * Find the slot of the key.
+	 * @param key
+	 * @param h
+	 * @return slot index, or -1
+	 */
+	private int find(byte[] key, int h)
+	{
+		for(int i = h & mask, n = 0; n < capacity; i = (i + 1) & mask, n++)
+		{
+			int s = slot(i);
+			int state = buffer.getInt(s + 4);
+			if(state == EMPTY)
+				return -1;
+			if(state == USED && buffer.getInt(s) == h && matcher.matches(buffer.getLong(s + 8), key))
+				return i;
+		}
+		return -1;
+	}
+	/**
+	 * 
+	 * @param key
+	 * @return address of the record, or {@link #NOT_FOUND}
+	 */
+	long get(byte[] key)
+	{
+		int i = find(key, hash(key));
+		return i == -1 ? NOT_FOUND : buffer.getLong(slot(i) + 8);
+	}
+	/**
+	 * 
+	 * @param key
+	 * @param address
+	 * @return previous address, or {@link #NOT_FOUND}
+	 * @throws IOException
+	 */
+	long put(byte[] key, long address) throws IOException
+	{
+		int h = hash(key);
+		int i = find(key, h);
+		if(i != -1)
+		{
+			int s = slot(i);
+			long prev = buffer.getLong(s + 8);
+			buffer.putLong(s + 8, address);
+			return prev;
+		}
+		if(size + deleted + 1 > capacity * LOAD_FACTOR)
+		{
+			resize(size + 1 > capacity * LOAD_FACTOR / 2 ? capacity << 1 : capacity);
+		}
+		insert(h, address);
+		size++;
+		writeCounts();
+		return NOT_FOUND;
+	}
+	/**
+	 * Move the entry of a key from one address to another, if it still points to the former. 
+	 * Addresses are unique, so this does not need to read the key from the log, which may no
+	 * longer have it at the old address.
+	 * @param key
+	 * @param from
+	 * @param to
+	 * @return false if the key is no longer at the given address
+	 */
+	boolean relocate(byte[] key, long from, long to)
+	{
+		int h = hash(key);
+		for(int i = h & mask, n = 0; n < capacity; i = (i + 1) & mask, n++)
+		{
+			int s = slot(i);
+			int state = buffer.getInt(s + 4);
+			if(state == EMPTY)
+				return false;
+			if(state == USED && buffer.getInt(s) == h && buffer.getLong(s + 8) == from)
+			{
+				buffer.putLong(s + 8, to);
+				return true;
+			}
+		}
+		return false;
+	}
+	private void insert(int h, long address)
+	{
+		for(int i = h & mask;; i = (i + 1) & mask)
+		{
+			int s = slot(i);
+			int state = buffer.getInt(s + 4);
+			if(state != USED)
+			{
+				if(state == DELETED)
+					deleted--;
+				buffer.putInt(s, h);
+				buffer.putLong(s + 8, address);
+				buffer.putInt(s + 4, USED);
+				return;
+			}
+		}
+	}
+	/**
+	 * 
+	 * @param key
+	 * @return previous address, or {@link #NOT_FOUND}
+	 */
+	long remove(byte[] key)
+	{
+		int i = find(key, hash(key));
+		if(i == -1)
+			return NOT_FOUND;
+		int s = slot(i);
+		buffer.putInt(s + 4, DELETED);
+		size--;
+		deleted++;
+		writeCounts();
+		return buffer.getLong(s + 8);
+	}
+	/**
+	 * Rehash the used slots into a new table, dropping deleted ones.
+	 * @param newCapacity
+	 * @throws IOException
+	 */
+	private void resize(int newCapacity) throws IOException
+	{
+		if(newCapacity > MAX_CAPACITY)
+			throw new IOException("Index capacity exceeded for "+file);
+		int n = 0;
+		int[] hashes = new int[size];
+		long[] addresses = new long[size];
+		for(int i = 0; i < capacity; i++)
+		{
+			int s = slot(i);
+			if(buffer.getInt(s + 4) == USED)
+			{
+				hashes[n] = buffer.getInt(s);
+				addresses[n] = buffer.getLong(s + 8);
+				n++;
+			}
+		}
+		create(newCapacity);
+		buffer.put(H_CLEAN, (byte) 0);
+		for(int i = 0; i < n; i++)
+		{
+			insert(hashes[i], addresses[i]);
+		}
+		size = n;
+		writeCounts();
+		log.debug("Resized index "+file.getName()+" to "+newCapacity+" slots");
+	}
+	int size()
+	{
+		return size;
+	}
+	/**
+	 * Mark the index as clean at given log end, and close.
+	 * @param logEnd
+	 */
+	void close(long logEnd)
+	{
+		buffer.putLong(H_LOGEND, logEnd);
+		buffer.put(H_CLEAN, (byte) 1);
+		close();
+	}
+	@Override
+	public void close() {
+		buffer.force();
+		DirectMem.unmap(buffer);
+	}
+}
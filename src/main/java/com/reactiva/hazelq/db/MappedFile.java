@@ -30,19 +30,16 @@ package com.reactiva.hazelq.db;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -51,7 +48,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
-import com.reactiva.hazelq.utils.DirectMem;
+import com.reactiva.hazelq.db.GroupCommit.Write;
+import com.reactiva.hazelq.db.HashIndex.KeyMatcher;
+import com.reactiva.hazelq.db.SegmentedLog.RecordVisitor;
 
 /**
  * @Experimental A local disk persistence system for storing key value records.
@@ -59,20 +58,54 @@ import com.reactiva.hazelq.utils.DirectMem;
  *               serialized bytes. Can be used as a simple file backed map data
  *               structure.
  *               <p>
- *               <b>Note:</b> The compaction of deleted records is in WIP state.
+ *               Records are appended to a {@linkplain SegmentedLog segmented log}, and 
+ *               read from the memory mapped segments. A remove appends a tombstone. The
+ *               key offsets are kept in a persistent {@linkplain HashIndex hash index}, which
+ *               is rebuilt by scanning the log on open, unless it was closed cleanly.
+ *               <p>
+ *               Defaults can be set by system properties <i>hazelq.db.segment.bytes</i> (64 MB),
+ *               <i>hazelq.db.sync</i> ({@linkplain SyncPolicy}, INTERVAL) and 
+ *               <i>hazelq.db.sync.interval.ms</i> (1000).
+ *               <p>
+ *               Sealed segments are {@linkplain Compactor compacted} in the background, when the dead bytes 
+ *               exceed a fraction of the segment. This is set by <i>hazelq.db.compact</i> (true), 
+ *               <i>hazelq.db.compact.interval.ms</i> (60000), <i>hazelq.db.compact.threshold</i> (0.5) and 
+ *               <i>hazelq.db.compact.bytes.per.sec</i> (32 MB).
+ *               <p>
+ *               Concurrent writes and removes are {@linkplain GroupCommit group committed}, so that
+ *               the records of a batch are appended under a single lock hold, and synced once with 
+ *               {@linkplain SyncPolicy#PER_BATCH}. Batch size is capped by <i>hazelq.db.batch.max</i> (1024).
+ *               <p>
+ *               Values read are kept in a {@linkplain ValueCache} of <i>hazelq.db.cache.bytes</i> (32 MB,
+ *               0 to disable), in <i>hazelq.db.cache.stripes</i> (16) stripes, and held off heap if 
+ *               <i>hazelq.db.cache.offheap</i> (false).
  */
 class MappedFile implements Closeable {
 
-	static final String DB_FILE_SUFF = ".dat";
-	static final String IDX_FILE_SUFF = ".idx";
-
 	private static final Logger log = LoggerFactory.getLogger(MappedFile.class);
-	private RandomAccessFile dataFile;
-	private RandomAccessFile indexFile;
-	private FileChannel dbChannel;
+	public static final int DEFAULT_SEGMENT_BYTES = Integer.getInteger("hazelq.db.segment.bytes", 64 * 1024 * 1024);
+	public static final SyncPolicy DEFAULT_SYNC = SyncPolicy.valueOf(System.getProperty("hazelq.db.sync", SyncPolicy.INTERVAL.name()));
+	public static final long DEFAULT_SYNC_INTERVAL_MS = Long.getLong("hazelq.db.sync.interval.ms", 1000);
+	public static final boolean COMPACT_ENABLED = Boolean.valueOf(System.getProperty("hazelq.db.compact", "true"));
+	public static final long COMPACT_INTERVAL_MS = Long.getLong("hazelq.db.compact.interval.ms", 60000);
+	public static final double COMPACT_THRESHOLD = Double.parseDouble(System.getProperty("hazelq.db.compact.threshold", "0.5"));
+	public static final long CACHE_BYTES = Long.getLong("hazelq.db.cache.bytes", 32 * 1024 * 1024);
+	public static final boolean CACHE_OFFHEAP = Boolean.valueOf(System.getProperty("hazelq.db.cache.offheap", "false"));
+	public static final int CACHE_STRIPES = Integer.getInteger("hazelq.db.cache.stripes", 16);
+	public static final int MAX_BATCH = Integer.getInteger("hazelq.db.batch.max", 1024);
+	public static final long COMPACT_BYTES_PER_SEC = Long.getLong("hazelq.db.compact.bytes.per.sec", 32 * 1024 * 1024);
+	
 	final ReadWriteLock fileLock = new ReentrantReadWriteLock();
-	private ScheduledExecutorService compactor;
-	public static final int DEFAULT_CACHE_SIZE = 1000;
+	private final SegmentedLog dataLog;
+	private final HashIndex index;
+	private final Compactor compactor;
+	private final GroupCommit writer;
+	private final ValueCache cache;
+	private ScheduledFuture<?> compactTask;
+	/**
+	 * Shared by all files, so that compactions do not compete for the disk.
+	 */
+	private static ScheduledExecutorService compactThread;
 
 	/**
 	 * 
@@ -81,7 +114,7 @@ class MappedFile implements Closeable {
 	 * @throws IOException
 	 */
 	public MappedFile(String dir, String fileName) throws IOException {
-		this(dir, fileName, false, DEFAULT_CACHE_SIZE);
+		this(dir, fileName, DEFAULT_SEGMENT_BYTES, DEFAULT_SYNC, DEFAULT_SYNC_INTERVAL_MS);
 	}
 
 	final String fileName;
@@ -90,81 +123,172 @@ class MappedFile implements Closeable {
 	 * 
 	 * @param dir
 	 * @param fileName
-	 * @param usecompact
+	 * @param segmentBytes
+	 * @param sync
+	 * @param syncIntervalMillis
 	 * @throws IOException
 	 */
-	public MappedFile(String dir, String fileName, boolean usecompact, int cacheSize) throws IOException {
+	public MappedFile(String dir, String fileName, int segmentBytes, SyncPolicy sync, long syncIntervalMillis) throws IOException {
 		this.fileName = fileName;
-		File f = new File(dir);
-		if (!f.exists())
-			f.mkdirs();
-
-		File db = new File(f, fileName + DB_FILE_SUFF);
-		if (!db.exists())
-			db.createNewFile();
-
-		File idx = new File(f, fileName + IDX_FILE_SUFF);
-		if (!idx.exists())
-			idx.createNewFile();
-
-		open(db, idx, cacheSize);
-
-		if (usecompact) {
-			//compactor = Executors.newSingleThreadScheduledExecutor();
-			//compactor.scheduleWithFixedDelay(new Compactor(this), 60, 60, TimeUnit.SECONDS);
-			log.warn("* COMPACTION NOT SUPPORTED *");
+		dataLog = new SegmentedLog(new File(dir), fileName, segmentBytes, sync, syncIntervalMillis);
+		index = new HashIndex(new File(dir, fileName + HashIndex.IDX_FILE_SUFF), new KeyMatcher() {
+			
+			@Override
+			public boolean matches(long address, byte[] key) {
+				return dataLog.keyEquals(address, key);
+			}
+		});
+		if (!index.validate(dataLog.endAddress())) {
+			rebuildIndex();
+		}
+		cache = new ValueCache(CACHE_BYTES, CACHE_STRIPES, CACHE_OFFHEAP);
+		writer = new GroupCommit(MAX_BATCH) {
+			
+			@Override
+			protected void commit(List<Write> batch) {
+				commitBatch(batch);
+			}
+		};
+		compactor = new Compactor(this, COMPACT_INTERVAL_MS, COMPACT_THRESHOLD, COMPACT_BYTES_PER_SEC);
+		if (COMPACT_ENABLED) {
+			startCompactor();
 		}
 	}
-
+	private static synchronized ScheduledExecutorService compactThread() {
+		if (compactThread == null) {
+			compactThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "hq-compactor");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return compactThread;
+	}
+	private void startCompactor() {
+		compactTask = compactThread().scheduleWithFixedDelay(compactor, compactor.intervalMillis, compactor.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	SegmentedLog dataLog() {
+		return dataLog;
+	}
+	HashIndex index() {
+		return index;
+	}
 	/**
 	 * 
-	 * @param cacheSize
-	 * @throws FileNotFoundException
+	 * @return the background compactor, for metrics
 	 */
-	private void open(File dbFile, File idxFile, final int cacheSize) throws IOException {
-
-		setDataFile(new RandomAccessFile(dbFile, "rwd"));
-		setIndexFile(new RandomAccessFile(idxFile, "rwd"));
-
-		getDataFile().seek(dbFile.length());
-		getIndexFile().seek(idxFile.length());
-
-		dbChannel = getDataFile().getChannel();
-
-		dataMap = new WeakHashMap<>();
-		indexMap = new LinkedHashMap<String, Offsets>((cacheSize + 1), 1f, true) {
-
-			/**
-			 * 
-			 */
-			private static final long serialVersionUID = 6521502326064918997L;
+	Compactor getCompactor() {
+		return compactor;
+	}
+	/**
+	 * Run a compaction pass on the calling thread.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		compactor.compact();
+	}
 
+	/**
+	 * Rebuild the key index from the log. Later records override the earlier ones.
+	 * @throws IOException 
+	 */
+	private void rebuildIndex() throws IOException {
+		final IOException[] err = new IOException[1];
+		long start = System.currentTimeMillis();
+		index.clear();
+		dataLog.scan(new RecordVisitor() {
+			
 			@Override
-			protected boolean removeEldestEntry(Map.Entry<String, Offsets> eldest) {
-				return size() >= cacheSize;
+			public void visit(long address, byte[] key, int valueLen) {
+				if(err[0] != null)
+					return;
+				try {
+					long prev;
+					if (valueLen == SegmentedLog.TOMBSTONE) {
+						prev = index.remove(key);
+						dataLog.markDead(address);
+					}
+					else
+						prev = index.put(key, address);
+					if (prev != HashIndex.NOT_FOUND)
+						dataLog.markDead(prev);
+				} catch (IOException e) {
+					err[0] = e;
+				}
 			}
-
-		};
-	}
-
-	private Long removeKey(String key) throws IOException {
-		Offsets offsets = indexMap.get(key);
-		markDeleted(offsets);
-		indexMap.remove(key);
-		dataMap.remove(offsets.data);
-		return offsets.data;
+		});
+		if(err[0] != null)
+			throw err[0];
+		dataLog.markMeasured();
+		log.info("[" + fileName + "] Rebuilt index of " + index.size() + " keys in " + (System.currentTimeMillis() - start) + " ms");
 	}
 
-	private void markDeleted(Offsets idx) throws IOException {
-		getDataFile().seek(idx.data);
-		getDataFile().writeInt(-1);
-		long ifptr = getIndexFile().getFilePointer();
+	/**
+	 * Apply a batch of writes holding the write lock, and sync once before completing them.
+	 * The sync holds only the read lock, so that readers do not wait on the disk, while a 
+	 * compaction swap still does.
+	 * @param batch
+	 */
+	private void commitBatch(List<Write> batch) {
+		fileLock.writeLock().lock();
 		try {
-			getIndexFile().seek(idx.idx);
-			getIndexFile().writeBoolean(true);// deleted
+			try {
+				for (Write w : batch) {
+					try {
+						w.setResult(apply(w));
+					} catch (IOException | RuntimeException e) {
+						w.setError(e);
+					}
+				}
+			} finally {
+				fileLock.readLock().lock();
+				fileLock.writeLock().unlock();
+			}
+			dataLog.endBatch();
+		} catch (RuntimeException e) {
+			for (Write w : batch) {
+				w.setError(e);
+			}
 		} finally {
-			getIndexFile().seek(ifptr);
+			fileLock.readLock().unlock();
+			for (Write w : batch) {
+				w.done();
+			}
+		}
+	}
+
+	private byte[] apply(Write w) throws IOException {
+		byte[] prev = null;
+		for (int i = 0; i < w.keys.length; i++) {
+			cache.invalidate(w.keys[i]);
+			prev = w.values[i] == null ? delete(w.keyBytes[i], w.previous) : put(w.keyBytes[i], w.values[i], w.previous);
 		}
+		return prev;
+	}
+
+	private byte[] delete(byte[] k, boolean previous) throws IOException {
+		long addr = index.get(k);
+		if (addr == HashIndex.NOT_FOUND)
+			return null;
+		byte[] b = previous ? dataLog.readValue(addr) : null;
+		dataLog.markDead(dataLog.append(k, null));
+		dataLog.markDead(addr);
+		index.remove(k);
+		return b;
+	}
+
+	private byte[] put(byte[] k, byte[] bytes, boolean previous) throws IOException {
+		long addr = dataLog.append(k, bytes);
+		long prev = index.put(k, addr);
+		if (prev == HashIndex.NOT_FOUND)
+			return null;
+		dataLog.markDead(prev);
+		return previous ? dataLog.readValue(prev) : null;
 	}
 
 	/**
@@ -175,20 +299,7 @@ class MappedFile implements Closeable {
 	 */
 	public byte[] remove(String key) throws IOException {
 		Assert.notNull(key, "Null key not supported");
-		fileLock.writeLock().lock();
-		long fp = getDataFile().getFilePointer();
-		try {
-
-			byte[] b = read0(key);
-			if (b != null) {
-				removeKey(key);
-				return b;
-			}
-		} finally {
-			getDataFile().seek(fp);
-			fileLock.writeLock().unlock();
-		}
-		return null;
+		return writer.execute(new Write(key, null));
 	}
 
 	/**
@@ -203,97 +314,49 @@ class MappedFile implements Closeable {
 	public byte[] write(String key, byte[] bytes) throws IOException {
 		Assert.notNull(key, "Null key not supported");
 		Assert.notNull(bytes, "Null value not supported");
-		byte[] prev = remove(key);// remove any existing key
-		boolean err = false;
-		fileLock.writeLock().lock();
-		try {
-			long fp = getDataFile().getFilePointer();
-			getDataFile().writeInt(bytes.length);
-			getDataFile().write(bytes);
-
-			writeIndex(key, fp);
-			return prev;
-		} catch (IOException ie) {
-			err = true;
-			throw ie;
-		} finally {
-			fileLock.writeLock().unlock();
-			if (err && prev != null) {
-				write(key, prev);
-			}
-		}
-
+		return writer.execute(new Write(key, bytes));
 	}
 
-	private Map<Long, byte[]> dataMap;
-	private Map<String, Offsets> indexMap;
-
 	/**
-	 * Get the record from given offset.
+	 * Submit a write, to be committed with the concurrent ones. The future completes with the
+	 * previous value, once the batch is committed. The calling thread may commit the batch, if 
+	 * no other writer is doing so.
 	 * 
-	 * @param idx
+	 * @param key
+	 * @param bytes
 	 * @return
-	 * @throws IOException
 	 */
-	private boolean readData(long idx) throws IOException {
-		ByteBuffer buff = ByteBuffer.allocate(4);
-		int read = dbChannel.read(buff, idx);
-		Assert.isTrue(read == 4, "DB file corrupted");
-
-		buff.flip();
-		int len = buff.asIntBuffer().get();
-		if (len == -1)
-			return false; // deleted
-
-		buff = ByteBuffer.allocate(len);
-
-		long pos = idx + 4;
-		read = dbChannel.read(buff, pos);
-		while (buff.hasRemaining() && read > 0) {
-			pos += read;
-			read = dbChannel.read(buff, pos);
-		}
-		Assert.isTrue(read == len, "DB file corrupted");
-		buff.flip();
-		dataMap.put(idx, Arrays.copyOfRange(buff.array(), 0, read));
-		return true;
+	public CompletableFuture<byte[]> writeAsync(String key, byte[] bytes) {
+		Assert.notNull(key, "Null key not supported");
+		Assert.notNull(bytes, "Null value not supported");
+		return writer.submit(new Write(key, bytes));
 	}
 
 	/**
+	 * Remove the key, without returning the previous value.
 	 * 
 	 * @param key
-	 * @return
 	 * @throws IOException
 	 */
-	private byte[] read0(String key) throws IOException {
-
-		if (!indexMap.containsKey(key)) {
-			synchronized (indexMap) {
-				if (!indexMap.containsKey(key)) {
-					readIndex(key);
-				}
-			}
-		}
+	public void delete(String key) throws IOException {
+		Assert.notNull(key, "Null key not supported");
+		writer.execute(new Write(new String[] { key }, new byte[1][], false));
+	}
 
-		Offsets offsets = indexMap.get(key);
-		if (offsets != null) {
-			if (!dataMap.containsKey(offsets.data)) {
-				boolean read = false;
-				synchronized (dataMap) {
-					if (!dataMap.containsKey(offsets.data)) {
-						read = readData(offsets.data);
-					}
-				}
-				if (!read)
-					return null;
-			}
-			byte[] b = dataMap.get(offsets.data);
-			if (b != null) {
-				return Arrays.copyOf(b, b.length);
-			}
+	/**
+	 * Write all the records as a single sequential append, without returning the previous values.
+	 * 
+	 * @param keys
+	 * @param values
+	 * @throws IOException
+	 */
+	public void writeAll(String[] keys, byte[][] values) throws IOException {
+		Assert.isTrue(keys.length == values.length, "Keys and values do not match");
+		for (int i = 0; i < keys.length; i++) {
+			Assert.notNull(keys[i], "Null key not supported");
+			Assert.notNull(values[i], "Null value not supported");
 		}
-		return null;
-
+		writer.execute(new Write(keys, values, false));
 	}
 
 	/**
@@ -305,9 +368,21 @@ class MappedFile implements Closeable {
 	 */
 	public byte[] read(String key) throws IOException {
 		Assert.notNull(key, "Null key not supported");
+		ByteBuffer v = cache.get(key);
+		if (v != null) {
+			byte[] b = new byte[v.remaining()];
+			v.get(b);
+			return b;
+		}
 		fileLock.readLock().lock();
 		try {
-			return read0(key);
+			long addr = index.get(key.getBytes(StandardCharsets.UTF_8));
+			if (addr == HashIndex.NOT_FOUND)
+				return null;
+			byte[] b = dataLog.readValue(addr);
+			if (cache.isEnabled())
+				cache.put(key, b);
+			return b;
 		} finally {
 			fileLock.readLock().unlock();
 		}
@@ -315,63 +390,87 @@ class MappedFile implements Closeable {
 	}
 
 	/**
-	 * Scan the index file for this key's offset.
+	 * Read the value for a given key as a read-only buffer, or returns null if none present.
+	 * A cached value is returned as a view, without copying.
 	 * 
 	 * @param key
 	 * @return
 	 * @throws IOException
 	 */
-	private boolean readIndex(String key) throws IOException {
-		try (IndexIterator idxIter = new IndexIterator(this)) {
-			if (!idxIter.isEmpty()) {
-				Long offset;
-				byte[] b;
-				while (idxIter.hasNext()) {
-					offset = idxIter.next();
-					if (idxIter.isDeleted())
-						continue;
-					b = idxIter.nextBytes();
-
-					if (new String(b, StandardCharsets.UTF_8).equals(key)) {
-						indexMap.put(key, new Offsets(offset, idxIter.getIdxOffset()));
-						return true;
-					}
+	public ByteBuffer readBuffer(String key) throws IOException {
+		Assert.notNull(key, "Null key not supported");
+		ByteBuffer v = cache.get(key);
+		if (v != null)
+			return v;
+		fileLock.readLock().lock();
+		try {
+			long addr = index.get(key.getBytes(StandardCharsets.UTF_8));
+			if (addr == HashIndex.NOT_FOUND)
+				return null;
+			byte[] b = dataLog.readValue(addr);
+			return cache.isEnabled() ? cache.put(key, b) : ByteBuffer.wrap(b).asReadOnlyBuffer();
+		} finally {
+			fileLock.readLock().unlock();
+		}
+	}
 
+	/**
+	 * Visit all the present records, in the order they were written. Writes are blocked
+	 * while visiting.
+	 * 
+	 * @param action
+	 * @throws IOException
+	 */
+	public void forEach(final BiConsumer<String, byte[]> action) throws IOException {
+		final IOException[] err = new IOException[1];
+		fileLock.readLock().lock();
+		try {
+			dataLog.scan(new RecordVisitor() {
+
+				@Override
+				public void visit(long address, byte[] key, int valueLen) {
+					if (err[0] != null || valueLen == SegmentedLog.TOMBSTONE || index.get(key) != address)
+						return;
+					try {
+						action.accept(new String(key, StandardCharsets.UTF_8), dataLog.readValue(address));
+					} catch (IOException e) {
+						err[0] = e;
+					}
 				}
-			}
+			});
+		} finally {
+			fileLock.readLock().unlock();
 		}
-		return false;
+		if (err[0] != null)
+			throw err[0];
 	}
 
-	private long writeIndex(String key, long fp) throws IOException {
-		byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
-		long ifp = getIndexFile().getFilePointer();
-
-		getIndexFile().writeBoolean(false);// deleted
-		getIndexFile().writeInt(utf8.length);
-		getIndexFile().write(utf8);
-		getIndexFile().writeLong(fp);
-		log.debug("Index offsets written " + ifp + ":" + getIndexFile().getFilePointer());
-		return ifp;
+	/**
+	 * 
+	 * @return the read cache, for metrics
+	 */
+	ValueCache getCache() {
+		return cache;
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (compactor != null) {
-			compactor.shutdown();
-			try {
-				compactor.awaitTermination(10, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-			}
+		if (compactTask != null) {
+			compactTask.cancel(false);
+		}
+		compactor.stop();
+		fileLock.writeLock().lock();
+		try {
+			index.close(dataLog.endAddress());
+			dataLog.close();
+			cache.clear();
+		} finally {
+			fileLock.writeLock().unlock();
 		}
-		getIndexFile().close();
-		getDataFile().close();
-		dbChannel.close();
 	}
 
 	/**
-	 * Scans the index file to check if the key is present. Null key not
-	 * supported
+	 * Check if the key is present. Null key not supported
 	 * 
 	 * @param key
 	 * @return
@@ -379,90 +478,34 @@ class MappedFile implements Closeable {
 	 */
 	public boolean contains(String key) throws IOException {
 		Assert.notNull(key, "Null key not supported");
-		MappedByteBuffer buff = null;
 		fileLock.readLock().lock();
 		try {
-			long len = getIndexFile().length();
-			buff = getIndexFile().getChannel().map(MapMode.READ_ONLY, 0, len);
-			byte[] b;
-			while (buff.hasRemaining()) {
-				boolean deleted = buff.get() != 0;
-
-				int b_len = buff.getInt();
-				b = new byte[b_len];
-				buff.get(b);
-				buff.getLong();
-
-				if (!deleted) {
-					if (key.equals(new String(b, StandardCharsets.UTF_8))) {
-						return true;
-					}
-				}
-			}
-
+			return index.get(key.getBytes(StandardCharsets.UTF_8)) != HashIndex.NOT_FOUND;
 		} finally {
-			if (buff != null) {
-				buff.clear();
-				DirectMem.unmap(buff);
-			}
 			fileLock.readLock().unlock();
 		}
-		return false;
-
 	}
 
 	/**
-	 * Scans the index file to get the size of the map.
+	 * Number of keys present.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public int size() throws IOException {
-		MappedByteBuffer buff = null;
 		fileLock.readLock().lock();
 		try {
-			long len = getIndexFile().length();
-			buff = getIndexFile().getChannel().map(MapMode.READ_ONLY, 0, len);
-			int count = 0;
-			while (buff.hasRemaining()) {
-				boolean deleted = buff.get() != 0;
-				if (!deleted)
-					count++;
-				int b_len = buff.getInt();
-				buff.get(new byte[b_len]);
-				buff.getLong();
-			}
-
-			return count;
+			return index.size();
 		} finally {
-			if (buff != null) {
-				buff.clear();
-				DirectMem.unmap(buff);
-			}
 			fileLock.readLock().unlock();
 		}
-
-	}
-
-	void clearCache() {
-		dataMap.clear();
-		indexMap.clear();
-	}
-
-	public RandomAccessFile getIndexFile() {
-		return indexFile;
-	}
-
-	public void setIndexFile(RandomAccessFile indexFile) {
-		this.indexFile = indexFile;
 	}
 
-	public RandomAccessFile getDataFile() {
-		return dataFile;
-	}
-
-	private void setDataFile(RandomAccessFile dataFile) {
-		this.dataFile = dataFile;
+	/**
+	 * Force appended records to disk, irrespective of the sync policy.
+	 */
+	public void sync() {
+		dataLog.sync();
 	}
 
 }
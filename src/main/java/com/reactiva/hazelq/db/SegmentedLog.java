@@ -0,0 +1,633 @@
+/* ============================================================================
+*
+* FILE: SegmentedLog.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.reactiva.hazelq.utils.DirectMem;
+
+/**
+ * An append only log of key value records, over fixed size segment files. Segments are memory
+ * mapped in full, records are appended sequentially to the active segment and read from the
+ * mapping. A new segment is rolled when a record does not fit in the active one.
+ * <p>
+ * Record layout: <pre>[magic:1][crc:4][keyLen:4][valLen:4][key][value]</pre> where a valLen of -1
+ * is a tombstone. The crc covers key and value, and is used to detect a torn write on recovery.
+ * <p>
+ * A record is addressed by a long, the segment id in the high int and the offset in the low int.
+ * Appends are serialized. Reads do not lock, and rely on the caller not to {@linkplain #close() close}
+ * or delete segments concurrently.
+ */
+class SegmentedLog implements Closeable {
+
+	static final String LOG_FILE_SUFF = ".log";
+	static final String COMPACT_FILE_SUFF = ".compact";
+	static final byte MAGIC = 0x5A;
+	static final int HEADER_LEN = 13;
+	static final int TOMBSTONE = -1;
+	
+	private static final Logger log = LoggerFactory.getLogger(SegmentedLog.class);
+	/**
+	 * Visits records in log order, on recovery.
+	 */
+	interface RecordVisitor
+	{
+		/**
+		 * 
+		 * @param address
+		 * @param key
+		 * @param valueLen length of the value, or {@link SegmentedLog#TOMBSTONE}
+		 */
+		void visit(long address, byte[] key, int valueLen);
+	}
+	
+	static final class Segment
+	{
+		final int id;
+		final File file;
+		final MappedByteBuffer buffer;
+		/**
+		 * Write position. Only modified by the appender.
+		 */
+		volatile int limit;
+		volatile boolean dirty;
+		/**
+		 * Bytes of superseded records and tombstones, if {@link #measured}.
+		 */
+		final AtomicLong dead = new AtomicLong();
+		volatile boolean measured;
+		Segment(int id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			//the mapping stays valid after the channel is closed
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+			}
+		}
+		void force()
+		{
+			if(dirty)
+			{
+				dirty = false;
+				buffer.force();
+			}
+		}
+		void unmap()
+		{
+			DirectMem.unmap(buffer);
+		}
+	}
+	
+	static long address(int segment, int offset)
+	{
+		return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+	static int segmentOf(long address)
+	{
+		return (int) (address >>> 32);
+	}
+	static int offsetOf(long address)
+	{
+		return (int) address;
+	}
+	
+	private final File dir;
+	final String name;
+	final int segmentBytes;
+	private final SyncPolicy syncPolicy;
+	private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private volatile Segment active;
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final CRC32 crc = new CRC32();
+	private ScheduledExecutorService syncer;
+	
+	/**
+	 * 
+	 * @param dir
+	 * @param name
+	 * @param segmentBytes
+	 * @param syncPolicy
+	 * @param syncIntervalMillis used with {@linkplain SyncPolicy#INTERVAL}
+	 * @throws IOException
+	 */
+	SegmentedLog(File dir, String name, int segmentBytes, SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+		if(segmentBytes <= HEADER_LEN)
+			throw new IllegalArgumentException("Segment size too small: "+segmentBytes);
+		this.dir = dir;
+		this.name = name;
+		this.segmentBytes = segmentBytes;
+		this.syncPolicy = syncPolicy;
+		if (!dir.exists())
+			dir.mkdirs();
+		
+		open();
+		if(syncPolicy == SyncPolicy.INTERVAL)
+		{
+			syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "hq-log-sync-"+SegmentedLog.this.name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						sync();
+					} catch (Exception e) {
+						log.warn("["+SegmentedLog.this.name+"] Background sync failed", e);
+					}
+				}
+			}, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	private File segmentFile(int id)
+	{
+		return new File(dir, String.format("%s.%08d%s", name, id, LOG_FILE_SUFF));
+	}
+	/**
+	 * Existing segment files, by id.
+	 * @return
+	 */
+	private TreeMap<Integer, File> listSegments()
+	{
+		final String prefix = name + ".";
+		File[] files = dir.listFiles(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(File d, String n) {
+				return n.startsWith(prefix) && n.endsWith(LOG_FILE_SUFF) 
+						&& n.substring(prefix.length(), n.length() - LOG_FILE_SUFF.length()).matches("\\d+");
+			}
+		});
+		TreeMap<Integer, File> sorted = new TreeMap<>();
+		if (files != null) {
+			for (File f : files) {
+				String n = f.getName();
+				sorted.put(Integer.valueOf(n.substring(prefix.length(), n.length() - LOG_FILE_SUFF.length())), f);
+			} 
+		}
+		return sorted;
+	}
+	private void open() throws IOException
+	{
+		File[] stale = dir.listFiles(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(File d, String n) {
+				return n.startsWith(name + ".") && n.endsWith(LOG_FILE_SUFF + COMPACT_FILE_SUFF);
+			}
+		});
+		if (stale != null) {
+			for (File f : stale) {
+				log.info("[" + name + "] Deleting incomplete compaction file " + f.getName());
+				Files.delete(f.toPath());
+			} 
+		}
+		TreeMap<Integer, File> files = listSegments();
+		for(Map.Entry<Integer, File> e : files.entrySet())
+		{
+			Segment s = new Segment(e.getKey(), e.getValue(), segmentBytes);
+			s.limit = recover(s);
+			segments.put(s.id, s);
+			active = s;
+		}
+		if(active == null)
+		{
+			roll(0);
+		}
+		log.info("["+name+"] Opened log with "+segments.size()+" segment/s. Active segment "+active.id+" at "+active.limit);
+	}
+	/**
+	 * Find the end of valid records in a segment. Anything after a torn record is zeroed.
+	 * @param s
+	 * @return
+	 */
+	private int recover(Segment s)
+	{
+		ByteBuffer buf = s.buffer.duplicate();
+		int pos = 0;
+		while(pos + HEADER_LEN <= segmentBytes && buf.get(pos) == MAGIC)
+		{
+			int len = recordLength(buf, pos);
+			if(len < 0 || pos + len > segmentBytes || !checksum(buf, pos))
+			{
+				log.warn("["+name+"] Discarding torn record in segment "+s.id+" at "+pos);
+				break;
+			}
+			pos += len;
+		}
+		for(int i = pos; i < segmentBytes && i < pos + HEADER_LEN; i++)
+		{
+			buf.put(i, (byte) 0);
+		}
+		return pos;
+	}
+	private static int recordLength(ByteBuffer buf, int pos)
+	{
+		int keyLen = buf.getInt(pos + 5);
+		int valLen = buf.getInt(pos + 9);
+		if(keyLen < 0 || valLen < TOMBSTONE)
+			return -1;
+		return HEADER_LEN + keyLen + Math.max(valLen, 0);
+	}
+	private boolean checksum(ByteBuffer buf, int pos)
+	{
+		ByteBuffer b = buf.duplicate();
+		int len = recordLength(buf, pos);
+		b.limit(pos + len).position(pos + HEADER_LEN);
+		CRC32 c = new CRC32();
+		c.update(b);
+		return (int) c.getValue() == buf.getInt(pos + 1);
+	}
+	/**
+	 * Start a new active segment. Called holding the append lock, or on open.
+	 * @param id
+	 * @throws IOException
+	 */
+	private void roll(int id) throws IOException
+	{
+		if(active != null)
+		{
+			active.force();
+		}
+		Segment s = new Segment(id, segmentFile(id), segmentBytes);
+		s.limit = 0;
+		segments.put(id, s);
+		active = s;
+		log.debug("["+name+"] Rolled to segment "+id);
+	}
+	/**
+	 * Append a record.
+	 * @param key
+	 * @param value null for a tombstone
+	 * @return the record address
+	 * @throws IOException
+	 */
+	long append(byte[] key, byte[] value) throws IOException
+	{
+		int len = HEADER_LEN + key.length + (value != null ? value.length : 0);
+		if(len > segmentBytes)
+			throw new IOException("Record of "+len+" bytes does not fit in a segment of "+segmentBytes+" bytes");
+		
+		appendLock.lock();
+		try 
+		{
+			Segment s = active;
+			if(s.limit + len > segmentBytes)
+			{
+				roll(s.id + 1);
+				s = active;
+			}
+			int pos = s.limit;
+			ByteBuffer buf = s.buffer;
+			//header is completed last, so that a torn write is never read as valid
+			buf.putInt(pos + 5, key.length);
+			buf.putInt(pos + 9, value != null ? value.length : TOMBSTONE);
+			crc.reset();
+			crc.update(key, 0, key.length);
+			put(buf, pos + HEADER_LEN, key);
+			if (value != null) {
+				crc.update(value, 0, value.length);
+				put(buf, pos + HEADER_LEN + key.length, value);
+			}
+			buf.putInt(pos + 1, (int) crc.getValue());
+			buf.put(pos, MAGIC);
+			
+			s.limit = pos + len;
+			s.dirty = true;
+			if(syncPolicy == SyncPolicy.PER_WRITE)
+			{
+				s.force();
+			}
+			return address(s.id, pos);
+		} 
+		finally {
+			appendLock.unlock();
+		}
+	}
+	private static void put(ByteBuffer buf, int index, byte[] b)
+	{
+		ByteBuffer dup = buf.duplicate();
+		dup.position(index);
+		dup.put(b);
+	}
+	private Segment segment(long address) throws IOException
+	{
+		Segment s = segments.get(segmentOf(address));
+		if(s == null)
+			throw new IOException("No segment for address "+Long.toHexString(address));
+		return s;
+	}
+	/**
+	 * Read the value of record at given address.
+	 * @param address
+	 * @return the value, or null if a tombstone
+	 * @throws IOException
+	 */
+	byte[] readValue(long address) throws IOException
+	{
+		Segment s = segment(address);
+		int pos = offsetOf(address);
+		ByteBuffer buf = s.buffer.duplicate();
+		if(buf.get(pos) != MAGIC)
+			throw new IOException("["+name+"] Corrupted record at "+Long.toHexString(address));
+		int keyLen = buf.getInt(pos + 5);
+		int valLen = buf.getInt(pos + 9);
+		if(valLen == TOMBSTONE)
+			return null;
+		byte[] b = new byte[valLen];
+		buf.position(pos + HEADER_LEN + keyLen);
+		buf.get(b);
+		return b;
+	}
+	/**
+	 * Read the key of record at given address.
+	 * @param address
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] readKey(long address) throws IOException
+	{
+		Segment s = segment(address);
+		int pos = offsetOf(address);
+		ByteBuffer buf = s.buffer.duplicate();
+		if(buf.get(pos) != MAGIC)
+			throw new IOException("["+name+"] Corrupted record at "+Long.toHexString(address));
+		byte[] b = new byte[buf.getInt(pos + 5)];
+		buf.position(pos + HEADER_LEN);
+		buf.get(b);
+		return b;
+	}
+	/**
+	 * Check if the record at given address has the key, without copying it.
+	 * @param address
+	 * @param key
+	 * @return
+	 */
+	boolean keyEquals(long address, byte[] key)
+	{
+		Segment s = segments.get(segmentOf(address));
+		if(s == null)
+			return false;
+		int pos = offsetOf(address);
+		ByteBuffer buf = s.buffer;
+		if(buf.getInt(pos + 5) != key.length)
+			return false;
+		int base = pos + HEADER_LEN;
+		for(int i = 0; i < key.length; i++)
+		{
+			if(buf.get(base + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Address past the last appended record.
+	 * @return
+	 */
+	long endAddress()
+	{
+		Segment s = active;
+		return address(s.id, s.limit);
+	}
+	/**
+	 * Visit all records, in the order they were appended.
+	 * @param visitor
+	 */
+	void scan(RecordVisitor visitor)
+	{
+		for(Segment s : segments.values())
+		{
+			ByteBuffer buf = s.buffer.duplicate();
+			int pos = 0, end = s.limit;
+			while(pos < end)
+			{
+				int keyLen = buf.getInt(pos + 5);
+				int valLen = buf.getInt(pos + 9);
+				byte[] key = new byte[keyLen];
+				buf.position(pos + HEADER_LEN);
+				buf.get(key);
+				visitor.visit(address(s.id, pos), key, valLen);
+				pos += HEADER_LEN + keyLen + Math.max(valLen, 0);
+			}
+		}
+	}
+	/**
+	 * Length of the record at given address.
+	 * @param address
+	 * @return
+	 * @throws IOException
+	 */
+	int recordLength(long address) throws IOException
+	{
+		return recordLength(segment(address).buffer, offsetOf(address));
+	}
+	/**
+	 * Account the record at given address as garbage, for compaction.
+	 * @param address
+	 * @throws IOException
+	 */
+	void markDead(long address) throws IOException
+	{
+		Segment s = segment(address);
+		s.dead.addAndGet(recordLength(s.buffer, offsetOf(address)));
+	}
+	/**
+	 * Mark all segments as having their dead bytes accounted, after a full scan.
+	 */
+	void markMeasured()
+	{
+		for(Segment s : segments.values())
+		{
+			s.measured = true;
+		}
+	}
+	/**
+	 * Segments that are not being appended to, oldest first.
+	 * @return
+	 */
+	List<Segment> sealedSegments()
+	{
+		Segment a = active;
+		return new ArrayList<>(segments.headMap(a.id).values());
+	}
+	/**
+	 * 
+	 * @return id of the oldest segment
+	 */
+	int oldestSegment()
+	{
+		return segments.firstKey();
+	}
+	/**
+	 * Temporary file to write the compacted records of a segment.
+	 * @param id
+	 * @return
+	 */
+	File compactionFile(int id)
+	{
+		return new File(dir, segmentFile(id).getName() + COMPACT_FILE_SUFF);
+	}
+	/**
+	 * Swap a sealed segment with its compacted file, or drop it if there is none. The caller
+	 * must exclude readers, and update the addresses into the segment.
+	 * @param old
+	 * @param compacted the compacted records, or null if none
+	 * @param limit end of records in the compacted file
+	 * @return the new segment, or null if dropped
+	 * @throws IOException
+	 */
+	Segment replace(Segment old, File compacted, int limit) throws IOException
+	{
+		if(old == active)
+			throw new IllegalArgumentException("Cannot replace the active segment");
+		
+		old.force();
+		segments.remove(old.id);
+		old.unmap();
+		if(compacted == null)
+		{
+			Files.delete(old.file.toPath());
+			return null;
+		}
+		try {
+			Files.move(compacted.toPath(), old.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			//keep the old segment
+			Segment s = new Segment(old.id, old.file, segmentBytes);
+			s.limit = old.limit;
+			segments.put(s.id, s);
+			throw e;
+		}
+		Segment s = new Segment(old.id, old.file, segmentBytes);
+		s.limit = limit;
+		s.measured = true;
+		segments.put(s.id, s);
+		return s;
+	}
+	/**
+	 * Force dirty segments to disk.
+	 */
+	void sync()
+	{
+		for(Segment s : segments.values())
+		{
+			s.force();
+		}
+	}
+	/**
+	 * Sync at the end of a batch, if so configured.
+	 */
+	void endBatch()
+	{
+		if(syncPolicy == SyncPolicy.PER_BATCH)
+		{
+			sync();
+		}
+	}
+	/**
+	 * Total bytes appended across segments.
+	 * @return
+	 */
+	long size()
+	{
+		long size = 0;
+		for(Segment s : segments.values())
+		{
+			size += s.limit;
+		}
+		return size;
+	}
+	SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+	@Override
+	public void close() throws IOException {
+		boolean stopped = true;
+		if(syncer != null)
+		{
+			syncer.shutdown();
+			//a background sync in progress must not see an unmapped segment
+			try {
+				stopped = syncer.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped = false;
+			}
+			if(!stopped)
+				log.warn("["+name+"] Background sync did not stop, segments will not be unmapped");
+		}
+		appendLock.lock();
+		try 
+		{
+			sync();
+			if(stopped)
+			{
+				for(Segment s : segments.values())
+				{
+					s.unmap();
+				}
+			}
+			segments.clear();
+		} 
+		finally {
+			appendLock.unlock();
+		}
+	}
+}
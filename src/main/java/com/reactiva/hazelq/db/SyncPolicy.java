@@ -1,6 +1,6 @@
 /* ============================================================================
 *
-* FILE: Offsets.java
+* FILE: SyncPolicy.java
 *
 The MIT License (MIT)
 
@@ -27,23 +27,21 @@ SOFTWARE.
 * ============================================================================
 */
 package com.reactiva.hazelq.db;
-
 /**
- * 
+ * When appended records are forced to disk.
  */
-class Offsets
-{
-  /**
-   * 
-   * @param data
-   * @param idx
-   */
-  public Offsets(long data, long idx) {
-    super();
-    this.data = data;
-    this.idx = idx;
-  }
-
-  final long data;
-  final long idx;
-}
\ No newline at end of file
+public enum SyncPolicy {
+	/**
+	 * Force after every write. Durable, but bound by the disk flush latency.
+	 */
+	PER_WRITE,
+	/**
+	 * Force once at the end of a batch of writes. A single write is a batch of one.
+	 */
+	PER_BATCH,
+	/**
+	 * Force periodically in the background. Writes in the last interval may be lost on a crash
+	 * of the OS (not of the process, since the pages are already mapped).
+	 */
+	INTERVAL
+}
@@ -0,0 +1,312 @@
+/* ============================================================================
+*
+* FILE: ValueCache.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read cache of values by key, bounded by bytes. Lookups are lock free. Entries are 
+ * partitioned into stripes by key hash, each with its own byte budget and a CLOCK ring for
+ * eviction. A hit sets the reference bit of the entry, and the clock hand clears it, evicting 
+ * the first entry not referenced since it was last passed.
+ * <p>
+ * Values are kept as read-only buffers, on heap or direct, and handed out as views. 
+ * The owner must {@linkplain #invalidate(String) invalidate} a key when its value changes.
+ */
+class ValueCache {
+
+	/**
+	 * Approximate bookkeeping bytes per entry.
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+	
+	private static final class Entry
+	{
+		final String key;
+		final ByteBuffer value;
+		final int weight;
+		volatile boolean referenced;
+		/**
+		 * Position in the clock ring, -1 if removed. Guarded by the stripe lock.
+		 */
+		int slot = -1;
+		Entry(String key, ByteBuffer value) {
+			this.key = key;
+			this.value = value;
+			this.weight = value.capacity() + 2 * key.length() + ENTRY_OVERHEAD;
+		}
+	}
+	
+	private final class Stripe
+	{
+		private final ReentrantLock lock = new ReentrantLock();
+		private Entry[] ring = new Entry[64];
+		private int count;
+		private int hand;
+		private long bytes;
+		
+		void add(Entry e)
+		{
+			lock.lock();
+			try 
+			{
+				Entry old = map.put(e.key, e);
+				if(old != null)
+					unlink(old);
+				if(count == ring.length)
+				{
+					Entry[] r = new Entry[count << 1];
+					System.arraycopy(ring, 0, r, 0, count);
+					ring = r;
+				}
+				e.slot = count;
+				ring[count++] = e;
+				bytes += e.weight;
+				while(bytes > stripeBytes && count > 0)
+				{
+					evictOne();
+				}
+			} 
+			finally {
+				lock.unlock();
+			}
+		}
+		private void evictOne()
+		{
+			for(;;)
+			{
+				if(hand >= count)
+					hand = 0;
+				Entry c = ring[hand];
+				if(c.referenced)
+				{
+					c.referenced = false;
+					hand++;
+				}
+				else
+				{
+					map.remove(c.key, c);
+					unlink(c);
+					//the slot now holds the last entry, likely the one just added; pass it
+					hand++;
+					evictions.increment();
+					return;
+				}
+			}
+		}
+		/**
+		 * Remove from the ring, moving the last entry into the slot.
+		 * @param e
+		 */
+		private void unlink(Entry e)
+		{
+			int i = e.slot;
+			if(i < 0)
+				return;
+			Entry last = ring[--count];
+			ring[i] = last;
+			last.slot = i;
+			ring[count] = null;
+			e.slot = -1;
+			bytes -= e.weight;
+		}
+		void remove(Entry e)
+		{
+			lock.lock();
+			try {
+				unlink(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+		void clear()
+		{
+			lock.lock();
+			try 
+			{
+				for (int i = 0; i < count; i++) {
+					map.remove(ring[i].key, ring[i]);
+					ring[i].slot = -1;
+					ring[i] = null;
+				}
+				count = 0;
+				hand = 0;
+				bytes = 0;
+			} 
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+	private final Stripe[] stripes;
+	private final long maxBytes;
+	private final long stripeBytes;
+	private final boolean offHeap;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * 
+	 * @param maxBytes total budget, 0 to disable caching
+	 * @param stripes number of stripes, rounded up to a power of 2
+	 * @param offHeap keep the values in direct buffers
+	 */
+	ValueCache(long maxBytes, int stripes, boolean offHeap) {
+		int n = stripes > 1 ? Integer.highestOneBit(stripes - 1) << 1 : 1;
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.maxBytes = maxBytes;
+		this.stripeBytes = maxBytes / n;
+		this.offHeap = offHeap;
+	}
+	private Stripe stripe(String key)
+	{
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+	boolean isEnabled()
+	{
+		return stripeBytes > 0;
+	}
+	/**
+	 * 
+	 * @param key
+	 * @return a read-only view of the cached value, or null on a miss
+	 */
+	ByteBuffer get(String key)
+	{
+		Entry e = map.get(key);
+		if(e == null)
+		{
+			misses.increment();
+			return null;
+		}
+		if(!e.referenced)
+			e.referenced = true;
+		hits.increment();
+		return e.value.duplicate();
+	}
+	/**
+	 * Cache a copy of the value.
+	 * @param key
+	 * @param value
+	 * @return a read-only view of the cached copy, or of the given value if it is not cached
+	 */
+	ByteBuffer put(String key, byte[] value)
+	{
+		if(value.length + ENTRY_OVERHEAD > stripeBytes)
+			return ByteBuffer.wrap(value).asReadOnlyBuffer();
+		
+		ByteBuffer b;
+		if (offHeap) {
+			b = ByteBuffer.allocateDirect(value.length);
+			b.put(value).flip();
+		}
+		else
+			b = ByteBuffer.wrap(value.clone());
+		
+		Entry e = new Entry(key, b.asReadOnlyBuffer());
+		stripe(key).add(e);
+		return e.value.duplicate();
+	}
+	/**
+	 * Drop the cached value of the key.
+	 * @param key
+	 */
+	void invalidate(String key)
+	{
+		Entry e = map.remove(key);
+		if(e != null)
+			stripe(key).remove(e);
+	}
+	void clear()
+	{
+		for(Stripe s : stripes)
+		{
+			s.clear();
+		}
+	}
+	long getHits() {
+		return hits.sum();
+	}
+	long getMisses() {
+		return misses.sum();
+	}
+	long getEvictions() {
+		return evictions.sum();
+	}
+	/**
+	 * 
+	 * @return fraction of lookups that hit, 0 if none
+	 */
+	double getHitRatio()
+	{
+		long h = hits.sum(), m = misses.sum();
+		return h + m == 0 ? 0 : (double) h / (h + m);
+	}
+	/**
+	 * 
+	 * @return bytes held, including the entry overheads
+	 */
+	long getBytes()
+	{
+		long b = 0;
+		for(Stripe s : stripes)
+		{
+			s.lock.lock();
+			try {
+				b += s.bytes;
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		return b;
+	}
+	long getMaxBytes() {
+		return maxBytes;
+	}
+	int size()
+	{
+		return map.size();
+	}
+	@Override
+	public String toString() {
+		return "ValueCache [entries=" + size() + ", bytes=" + getBytes() + ", maxBytes=" + maxBytes + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
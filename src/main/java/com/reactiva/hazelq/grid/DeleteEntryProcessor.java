@@ -0,0 +1,61 @@
+/* ============================================================================
+*
+* FILE: DeleteEntryProcessor.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.grid;
+
+import java.util.Map.Entry;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+/**
+ * Removes the entry without returning the value it held, so nothing but the key goes 
+ * over the wire. A batch of keys can be removed in one call with {@code IMap.executeOnKeys}.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class DeleteEntryProcessor<K, V> extends AbstractEntryProcessor<K, V> {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+
+  public DeleteEntryProcessor() {
+    super(true);
+  }
+
+  @Override
+  public Object process(Entry<K, V> entry) {
+    if(entry.getValue() != null)
+    {
+      entry.setValue(null);
+    }
+    return null;
+  }
+
+}
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.reactiva.hazelq.protoc.CodecException;
+import com.reactiva.hazelq.protoc.dto.HQRequest;
 import com.reactiva.hazelq.protoc.impl.HQCodecWrapper;
 
 import io.netty.buffer.ByteBuf;
@@ -32,30 +33,37 @@ public class RequestConvertorHandler extends ByteToMessageDecoder {
 	
 	
 	
-	protected Object readAsStreamed(ByteBuf in) throws CodecException
+	/**
+	 * Decode the request headers directly off the frame buffer. Any bytes remaining in the
+	 * frame are passed along as a retained slice, without copying.
+	 * @param in
+	 * @return
+	 * @throws CodecException
+	 */
+	protected HQRequest readFrame(ByteBuf in) throws CodecException
 	{
-		log.debug("Reading request bytes");
-		byte[] b = new byte[in.readableBytes()];
-    	in.readBytes(b);
-    	log.debug("Transforming request to object");
-    	//TODO: codec.decode
-    	Object o  = null;//= codec.decode(ITOCLogin.class, new DataInputStream(new ByteArrayInputStream(b)));
-    	log.debug("Transformed request to object");
-    	return o;
+		HQRequest req = codec.decode(HQRequest.class, in);
+		if(in.isReadable())
+		{
+			req.setPayload(in.readRetainedSlice(in.readableBytes()));
+		}
+		return req;
 	}
 	
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
 		
 		if (log.isDebugEnabled()) {
-			int totalLen = in.getInt(0);
+			int totalLen = in.getInt(in.readerIndex());
 			log.debug("Begin request conversion for LLLL - "+totalLen);
 		}
 		try {
-			out.add(readAsStreamed(in));
+			out.add(readFrame(in));
 		} catch (CodecException e) {
 			log.error("-- Codec error --", e);
 			out.add(e.getMessage());
+			//discard the rest of the frame
+			in.skipBytes(in.readableBytes());
 		}
     	
 
@@ -12,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import com.reactiva.hazelq.protoc.dto.HQRequest;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -56,9 +57,15 @@ public class RequestProcessorHandlerAsync extends ChannelInboundHandlerAdapter {
 			super();
 			this.context = context;
 			this.request = request;
+			this.payload = ReferenceCountUtil.retain(request.getPayload());
 		}
 		final ChannelHandlerContext context;
 		final HQRequest request;
+		/**
+		 * The request payload, retained till the request is processed. The inbound handler
+		 * releases its own reference on return.
+		 */
+		final transient ByteBuf payload;
 		String correlationID;
 		/**
 		 * 
@@ -99,18 +106,28 @@ public class RequestProcessorHandlerAsync extends ChannelInboundHandlerAdapter {
 						else
 						{
 							CorrelatedRequest req = (CorrelatedRequest) next;
-							//do some process in a separate thread and then commit
-							//submitToIMSQueue
-							
-							//probably this thread should only poll the cache to see
-							//if any response is made available and return it.
-							
-							//req.context.fireChannelRead(resp);
+							try {
+								//do some process in a separate thread and then commit
+								//submitToIMSQueue
+								
+								//probably this thread should only poll the cache to see
+								//if any response is made available and return it.
+								
+								//req.context.fireChannelRead(resp);
+							} finally {
+								ReferenceCountUtil.release(req.payload);
+							}
 						}
 					} catch (InterruptedException e) {
 						Thread.currentThread().interrupt();
 					}
 				}
+				Serializable left;
+				while((left = queue.poll()) != null)
+				{
+					if(left instanceof CorrelatedRequest)
+						ReferenceCountUtil.release(((CorrelatedRequest) left).payload);
+				}
 			}
 		}.start();
 	}
@@ -123,6 +140,8 @@ public class RequestProcessorHandlerAsync extends ChannelInboundHandlerAdapter {
                 try {
                     decode(ctx, cast);
                 } finally {
+                    ReferenceCountUtil.release(cast.getPayload());
+                    cast.setPayload(null);
                     ReferenceCountUtil.release(cast);
                 }
             } else {
@@ -142,11 +161,14 @@ public class RequestProcessorHandlerAsync extends ChannelInboundHandlerAdapter {
 	}
 	private void decode(ChannelHandlerContext ctx, HQRequest msg) throws Exception {
 		submitToProcessQueue(msg);
-		queue.offer(new CorrelatedRequest(ctx, msg));
+		CorrelatedRequest req = new CorrelatedRequest(ctx, msg);
+		if(!queue.offer(req))
+			ReferenceCountUtil.release(req.payload);
 	}
 	/**
 	 * The method which prepares a MQ request and submits to a 
-	 * corresponding queue based on the request type.
+	 * corresponding queue based on the request type. The request payload, if any, is a slice
+	 * of the inbound buffer and is released on return; retain or copy it out when enqueuing.
 	 * @param msg
 	 */
 	protected void submitToProcessQueue(HQRequest msg) {
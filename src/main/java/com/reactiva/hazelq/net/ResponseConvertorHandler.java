@@ -1,68 +1,65 @@
 package com.reactiva.hazelq.net;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
-import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.reactiva.hazelq.protoc.CodecException;
+import com.reactiva.hazelq.protoc.Protocol;
 import com.reactiva.hazelq.protoc.impl.HQCodecWrapper;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+/**
+ * Writes responses straight into the (pooled, direct) buffer allocated by Netty. The 
+ * buffer is pre-sized to the fixed protocol length, so there is no intermediate copy.
+ * @author esutdal
+ *
+ */
 @Sharable
 public class ResponseConvertorHandler extends MessageToByteEncoder<Serializable> {
 
 	private static final Logger log = LoggerFactory.getLogger(ResponseConvertorHandler.class);
 	private HQCodecWrapper codec;
-	private boolean buffCodec;
 	/**
 	 * 
 	 * @param codecHdlr
-	 * @param rh
-	 * @param buffCodec
 	 */
-	public ResponseConvertorHandler(HQCodecWrapper codecHdlr, boolean buffCodec) {
+	public ResponseConvertorHandler(HQCodecWrapper codecHdlr) {
 		this.codec = codecHdlr;
-		this.buffCodec = buffCodec;
 	}
 	/**
-	 * Write the response to out stream.
+	 * Write the response to out buffer.
 	 * @param resp
 	 * @param out
-	 * @throws IOException 
 	 * @throws CodecException 
 	 */
-	protected void write(Serializable resp, DataOutputStream out) throws CodecException
+	protected void write(Serializable resp, ByteBuf out) throws CodecException
 	{
 		codec.encode(resp, out);
 	}
-	protected ByteBuffer write(Serializable resp) throws IOException, CodecException
-	{
-		return codec.encode(resp);
+	@Override
+	protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Serializable msg, boolean preferDirect)
+			throws Exception {
+		if(msg.getClass().isAnnotationPresent(Protocol.class))
+		{
+			int size = codec.sizeof(msg.getClass());
+			return preferDirect ? ctx.alloc().ioBuffer(size, size) : ctx.alloc().heapBuffer(size, size);
+		}
+		return super.allocateBuffer(ctx, msg, preferDirect);
 	}
 	@Override
 	protected void encode(ChannelHandlerContext ctx, Serializable msg, ByteBuf out) throws Exception {
-		if (buffCodec) {
-			out.writeBytes(write(msg));
-		}
-		else
-		{
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (log.isDebugEnabled()) {
 			log.debug("Writing response of type "+msg.getClass());
-			try {
-				write(msg, new DataOutputStream(bytes));
-			} catch (CodecException e) {
-				log.error("--Response conversion error--", e);
-			}
-			out.writeBytes(bytes.toByteArray());
-			
+		}
+		try {
+			write(msg, out);
+		} catch (CodecException e) {
+			log.error("--Response conversion error--", e);
 		}
 	}
 
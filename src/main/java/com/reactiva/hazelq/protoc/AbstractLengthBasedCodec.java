@@ -8,10 +8,9 @@ import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.beans.factory.BeanInitializationException;
 import org.springframework.beans.factory.config.BeanDefinition;
@@ -40,11 +39,23 @@ public abstract class AbstractLengthBasedCodec implements LengthBasedCodec {
 	}
 	/**
 	 * Given a root package, search recursively for classes annotated with {@linkplain Protocol @Protocol}.
+	 * If layouts were generated at build time, the {@linkplain ProtocolRegistry registry} is used instead of 
+	 * scanning the classpath.
 	 * @param basePkg
 	 * @return
 	 */
 	public static Set<Class<?>> findProtocolClasses(String basePkg)
 	  {
+		if(!ProtocolRegistry.isEmpty())
+		{
+			Set<Class<?>> classes = new HashSet<>();
+			for(Class<?> c : ProtocolRegistry.types())
+			{
+				if(c.getName().startsWith(basePkg + "."))
+					classes.add(c);
+			}
+			return classes;
+		}
 	    ClassPathScanningCandidateComponentProvider provider= new ClassPathScanningCandidateComponentProvider(false);
 	    provider.addIncludeFilter(new TypeFilter() {
 	      
@@ -84,7 +95,7 @@ public abstract class AbstractLengthBasedCodec implements LengthBasedCodec {
 		Date d = null;
 		if(f.getAttr() == Attribute.TEXT)
 		{
-			SimpleDateFormat sdf = new SimpleDateFormat(f.dateFormat);
+			SimpleDateFormat sdf = f.getDateFormatter();
 			try {
 				d = sdf.parse(o.toString());
 			} catch (ParseException e) {
@@ -106,7 +117,7 @@ public abstract class AbstractLengthBasedCodec implements LengthBasedCodec {
 		Object o = null;
 		if(f.getAttr() == Attribute.TEXT)
 		{
-			SimpleDateFormat sdf = new SimpleDateFormat(f.dateFormat);
+			SimpleDateFormat sdf = f.getDateFormatter();
 			o = sdf.format(d);
 		}
 		else if(f.getAttr() == Attribute.NUMERIC)
@@ -140,34 +151,90 @@ public abstract class AbstractLengthBasedCodec implements LengthBasedCodec {
 	{
 		return "get" + (fName.charAt(0)+"").toUpperCase() + fName.substring(1);
 	}
-	private final Map<String, ProtocolMeta> cache = new HashMap<>();
 	/**
-	 * 
+	 * New instance of a protocol class. Uses the generated layout, if available.
 	 * @param protoClassType
 	 * @return
+	 * @throws ReflectiveOperationException
 	 */
-	protected <T> ProtocolMeta getMeta(Class<T> protoClassType) throws CodecException
+	protected static <T> T newInstance(Class<T> protoClassType) throws ReflectiveOperationException
 	{
-		try {
+		ProtocolLayout<T> layout = ProtocolRegistry.get(protoClassType);
+		return layout != null ? layout.newInstance() : protoClassType.newInstance();
+	}
+	private static final AtomicLong codecInstances = new AtomicLong();
+	private static final AtomicLong metaInstances = new AtomicLong();
+	private static final AtomicLong generatedMetaInstances = new AtomicLong();
+	
+	protected AbstractLengthBasedCodec() {
+		codecInstances.incrementAndGet();
+	}
+	/**
+	 * Number of codec instances created.
+	 * @return
+	 */
+	public static long getCodecInstances() {
+		return codecInstances.get();
+	}
+	/**
+	 * Number of protocol meta data prepared, across codec instances. May count more than once 
+	 * per class and codec, if threads race on first use.
+	 * @return
+	 */
+	public static long getMetaInstances() {
+		return metaInstances.get();
+	}
+	/**
+	 * Number of protocol meta data taken from a generated {@linkplain ProtocolLayout}, out of {@link #getMetaInstances()}.
+	 * @return
+	 */
+	public static long getGeneratedMetaInstances() {
+		return generatedMetaInstances.get();
+	}
+	/**
+	 * Protocol meta data per class, prepared, validated and bound to the class accessors on first use. 
+	 * Thereafter a lookup is a plain read, and codecs need not validate it again per frame.
+	 */
+	private final ClassValue<ProtocolMeta> metas = new ClassValue<ProtocolMeta>() {
+
+		@Override
+		protected ProtocolMeta computeValue(Class<?> protoClassType) {
 			Assert.isTrue(protoClassType.isAnnotationPresent(Protocol.class), "Protocol classes should be annotated with @Protocol");
-			if(!cache.containsKey(protoClassType.getName()))
+			ProtocolLayout<?> layout = ProtocolRegistry.get(protoClassType);
+			ProtocolMeta protoMeta;
+			if(layout != null)
+			{
+				protoMeta = layout.meta();
+				generatedMetaInstances.incrementAndGet();
+			}
+			else
+			{
+				protoMeta = prepareMeta(protoClassType);
+			}
+			protoMeta.validate();
+			for(FormatMeta fm : protoMeta.getOrderedFormats())
 			{
-				synchronized (cache) {
-					if (!cache.containsKey(protoClassType.getName())) {
-						ProtocolMeta protoMeta = prepareMeta(protoClassType);
-						protoMeta.validate();
-						cache.put(protoClassType.getName(), protoMeta);
-					}
-				}
+				fm.introspect(protoClassType);
 			}
-		} catch (Exception e) {
+			metaInstances.incrementAndGet();
+			return protoMeta;
+		}
+	};
+	/**
+	 * 
+	 * @param protoClassType
+	 * @return
+	 */
+	protected <T> ProtocolMeta getMeta(Class<T> protoClassType) throws CodecException
+	{
+		try {
+			return metas.get(protoClassType);
+		} catch (RuntimeException e) {
 			throw new CodecException(e, Type.META_ERR);
 		}
-		
-		return cache.get(protoClassType.getName());
 	}
 	
-	private ProtocolMeta prepareMeta(Class<?> protoClassTyp)
+	private static ProtocolMeta prepareMeta(final Class<?> protoClassTyp)
 	{
 		ProtocolMeta protoMeta = new ProtocolMeta(protoClassTyp.getAnnotation(Protocol.class).name());
 		ReflectionUtils.doWithFields(protoClassTyp, new FieldCallback() {
@@ -180,7 +247,7 @@ public abstract class AbstractLengthBasedCodec implements LengthBasedCodec {
 				fm.setConstant(f.constant());
 				fm.setFieldName(field.getName());
 				fm.setDateFld(f.dateField());
-				fm.dateFormat = f.dateFormat();
+				fm.setDateFormat(f.dateFormat());
 				fm.setStrictSetter(f.strictSetter());
 				fm.introspect(protoClassTyp, field.getType());
 								
@@ -0,0 +1,126 @@
+package com.reactiva.hazelq.protoc;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
+/**
+ * Generates field accessors for protocol classes, at first use. The getter/setter methods are 
+ * bound into classes spun by {@linkplain LambdaMetafactory}, so that a field is read or written
+ * by a plain interface call, instead of a reflective {@linkplain Method#invoke(Object, Object...) invoke}.
+ * Falls back to reflection if the accessor cannot be generated.
+ * @author esutdal
+ *
+ */
+final class Accessors {
+
+	private static final Logger log = LoggerFactory.getLogger(Accessors.class);
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	
+	private Accessors() {
+	}
+	
+	private static RuntimeException unwrap(Throwable e)
+	{
+		Throwable t = e instanceof InvocationTargetException ? e.getCause() : e;
+		if(t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		return new UndeclaredThrowableException(t);
+	}
+	/**
+	 * 
+	 * @param getter
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static Function<Object, Object> getter(final Method getter)
+	{
+		try 
+		{
+			MethodHandle mh = LOOKUP.unreflect(getter);
+			CallSite cs = LambdaMetafactory.metafactory(LOOKUP, "apply", MethodType.methodType(Function.class),
+					MethodType.methodType(Object.class, Object.class), mh,
+					MethodType.methodType(ClassUtils.resolvePrimitiveIfNecessary(getter.getReturnType()), getter.getDeclaringClass()));
+			return (Function<Object, Object>) cs.getTarget().invoke();
+		} 
+		catch (Throwable e) {
+			log.warn("Using reflective getter for "+getter+". "+e);
+			return new Function<Object, Object>() {
+				
+				@Override
+				public Object apply(Object bean) {
+					try {
+						return getter.invoke(bean);
+					} catch (IllegalAccessException | InvocationTargetException e) {
+						throw unwrap(e);
+					}
+				}
+			};
+		}
+	}
+	/**
+	 * The generated setter of a primitive takes only its exact wrapper. Other values go through
+	 * the method handle adapted to objects, which widens them as reflection would.
+	 * @param setter
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static BiConsumer<Object, Object> setter(final Method setter)
+	{
+		try 
+		{
+			MethodHandle mh = LOOKUP.unreflect(setter);
+			final Class<?> type = ClassUtils.resolvePrimitiveIfNecessary(setter.getParameterTypes()[0]);
+			CallSite cs = LambdaMetafactory.metafactory(LOOKUP, "accept", MethodType.methodType(BiConsumer.class),
+					MethodType.methodType(void.class, Object.class, Object.class), mh,
+					MethodType.methodType(void.class, setter.getDeclaringClass(), type));
+			final BiConsumer<Object, Object> direct = (BiConsumer<Object, Object>) cs.getTarget().invoke();
+			if(!setter.getParameterTypes()[0].isPrimitive())
+				return direct;
+			
+			final MethodHandle converting = mh.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			return new BiConsumer<Object, Object>() {
+				
+				@Override
+				public void accept(Object bean, Object value) {
+					if(value == null || value.getClass() == type)
+					{
+						direct.accept(bean, value);
+						return;
+					}
+					try {
+						converting.invokeExact(bean, value);
+					} catch (Throwable e) {
+						throw unwrap(e);
+					}
+				}
+			};
+		} 
+		catch (Throwable e) {
+			log.warn("Using reflective setter for "+setter+". "+e);
+			return new BiConsumer<Object, Object>() {
+				
+				@Override
+				public void accept(Object bean, Object value) {
+					try {
+						setter.invoke(bean, value);
+					} catch (IllegalAccessException | InvocationTargetException e) {
+						throw unwrap(e);
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.reactiva.hazelq.protoc;
+
+import io.netty.buffer.ByteBuf;
+
+public interface ByteBufLengthBasedCodec extends LengthBasedCodec {
+
+	/**
+	 * Write a protocol instance directly to a (pooled) byte buffer, at its writer index. The
+	 * writer index is advanced by {@link #sizeof(Class)} bytes.
+	 * @param protoClass
+	 * @param out
+	 * @throws CodecException
+	 */
+	<T> void encode(T protoClass, ByteBuf out) throws CodecException;
+	/**
+	 * Write a protocol instance directly to a byte buffer dynamically.
+	 * @param protoClass
+	 * @param metaData
+	 * @param out
+	 * @throws CodecException
+	 */
+	<T> void encode(T protoClass, ProtocolMeta metaData, ByteBuf out) throws CodecException;
+
+	/**
+	 * Read an instance of protocol class directly from a (pooled) byte buffer, starting at its 
+	 * reader index. The reader index is advanced by {@link #sizeof(Class)} bytes.
+	 * @param protoClassType
+	 * @param in
+	 * @return
+	 * @throws CodecException
+	 */
+	<T> T decode(Class<T> protoClassType, ByteBuf in) throws CodecException;
+	/**
+	 * Read an instance of protocol class directly from a byte buffer dynamically.
+	 * @param protoClassType
+	 * @param metaData
+	 * @param in
+	 * @return
+	 * @throws CodecException
+	 */
+	<T> T decode(Class<T> protoClassType, ProtocolMeta metaData, ByteBuf in) throws CodecException;
+}
@@ -2,6 +2,9 @@ package com.reactiva.hazelq.protoc;
 
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.springframework.util.Assert;
 import org.springframework.util.ClassUtils;
@@ -48,6 +51,56 @@ public class FormatMeta {
 	String dateFormat;
 	private Method getter;
 	private Method setter;
+	private Function<Object, Object> reader;
+	private BiConsumer<Object, Object> writer;
+	private final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(dateFormat);
+		}
+	};
+	/**
+	 * Read the field from a protocol instance.
+	 * @param bean
+	 * @return
+	 */
+	public Object get(Object bean) {
+		return reader.apply(bean);
+	}
+	/**
+	 * Set the field on a protocol instance.
+	 * @param bean
+	 * @param value
+	 */
+	public void set(Object bean, Object value) {
+		writer.accept(bean, value);
+	}
+	/**
+	 * The date format of a {@linkplain #isDateFld() date field}, confined to the calling thread.
+	 * @return
+	 */
+	public SimpleDateFormat getDateFormatter() {
+		return dateFormatter.get();
+	}
+	public int getOffset() {
+		return offset;
+	}
+	/**
+	 * Bind field accessors generated at build time, in place of {@linkplain #introspect(Class, Class...) introspection}.
+	 * @param reader
+	 * @param writer
+	 */
+	public void accessors(Function<Object, Object> reader, BiConsumer<Object, Object> writer) {
+		this.reader = reader;
+		this.writer = writer;
+		introspected = true;
+	}
+	public String getDateFormat() {
+		return dateFormat;
+	}
+	public void setDateFormat(String dateFormat) {
+		this.dateFormat = dateFormat;
+	}
 	public void getter(Method m) {
 		setGetter(m);
 	}
@@ -209,12 +262,14 @@ public class FormatMeta {
 	}
 	public void setSetter(Method setter) {
 		this.setter = setter;
+		this.writer = Accessors.setter(setter);
 	}
 	public Method getGetter() {
 		return getter;
 	}
 	public void setGetter(Method getter) {
 		this.getter = getter;
+		this.reader = Accessors.getter(getter);
 	}
 	public boolean isStrictSetter() {
 		return isStrictSetter;
@@ -0,0 +1,26 @@
+package com.reactiva.hazelq.protoc;
+/**
+ * Layout of a {@linkplain Protocol @Protocol} class, generated at build time by the protocol annotation processor.
+ * Provides the {@linkplain ProtocolMeta} with field accessors bound, so that no reflection is needed at runtime.
+ * @author esutdal
+ *
+ * @param <T>
+ */
+public interface ProtocolLayout<T> {
+
+	/**
+	 * The protocol class type.
+	 * @return
+	 */
+	Class<T> type();
+	/**
+	 * A new instance of the protocol class.
+	 * @return
+	 */
+	T newInstance();
+	/**
+	 * The (validated) protocol meta data, with field accessors set.
+	 * @return
+	 */
+	ProtocolMeta meta();
+}
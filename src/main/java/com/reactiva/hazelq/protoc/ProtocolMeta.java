@@ -30,6 +30,15 @@ public class ProtocolMeta {
 	private void setSize(int size) {
 	}
 	private volatile boolean validated = false;
+	private FormatMeta[] ordered;
+	/**
+	 * The formats in offset order, as an array.
+	 * @return
+	 */
+	public FormatMeta[] getOrderedFormats() {
+		validate();
+		return ordered;
+	}
 	
 	public void validate() {
 		if (!validated) {
@@ -46,6 +55,7 @@ public class ProtocolMeta {
 						
 						size += len;
 					}
+					ordered = getFormats().values().toArray(new FormatMeta[getFormats().size()]);
 					validated = true;
 				}
 			}
@@ -0,0 +1,64 @@
+package com.reactiva.hazelq.protoc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+/**
+ * Registry of the {@linkplain ProtocolLayout} generated at build time, listed as services under 
+ * <i>META-INF/services</i>. Loaded once.
+ * @author esutdal
+ *
+ */
+public final class ProtocolRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(ProtocolRegistry.class);
+	private static final Map<Class<?>, ProtocolLayout<?>> layouts = load();
+	
+	private ProtocolRegistry() {
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static Map<Class<?>, ProtocolLayout<?>> load()
+	{
+		Map<Class<?>, ProtocolLayout<?>> map = new HashMap<>();
+		try {
+			for(ProtocolLayout pl : ServiceLoader.load(ProtocolLayout.class, ProtocolRegistry.class.getClassLoader()))
+			{
+				map.put(pl.type(), pl);
+			}
+		} catch (ServiceConfigurationError e) {
+			log.warn("Unable to load generated protocol layouts. Will fall back to introspection", e);
+			map.clear();
+		}
+		log.debug("Loaded "+map.size()+" generated protocol layouts");
+		return Collections.unmodifiableMap(map);
+	}
+	/**
+	 * 
+	 * @param type
+	 * @return the generated layout, or null if not available
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ProtocolLayout<T> get(Class<T> type)
+	{
+		return (ProtocolLayout<T>) layouts.get(type);
+	}
+	/**
+	 * 
+	 * @return protocol classes having a generated layout
+	 */
+	public static Set<Class<?>> types()
+	{
+		return layouts.keySet();
+	}
+	public static boolean isEmpty()
+	{
+		return layouts.isEmpty();
+	}
+}
@@ -13,6 +13,8 @@ import com.reactiva.hazelq.protoc.Protocol;
 import com.reactiva.hazelq.protoc.dto.HQDataSecHeader;
 import com.reactiva.hazelq.protoc.dto.HQInboundHeader;
 
+import io.netty.buffer.ByteBuf;
+
 @Protocol(name = "ITOCREQUEST")
 public class HQRequest implements Serializable {
 
@@ -21,6 +23,19 @@ public class HQRequest implements Serializable {
 	private HQDataSecHeader applicationHeader = null;
 	@Format(attribute = Attribute.INHEADER, offset = 0, length = 108, constant = "")
 	private HQInboundHeader mVSInboundITOCHeader = null;
+	/**
+	 * The bytes following the headers in a frame, as a retained slice of the inbound buffer.
+	 * Not part of the protocol layout. To be released once enqueued.
+	 */
+	private transient ByteBuf payload = null;
+
+	public ByteBuf getPayload() {
+		return payload;
+	}
+
+	public void setPayload(ByteBuf payload) {
+		this.payload = payload;
+	}
 
 	public HQDataSecHeader getApplicationHeader() {
 		return applicationHeader;
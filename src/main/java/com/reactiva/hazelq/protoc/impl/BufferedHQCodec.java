@@ -6,7 +6,6 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Map.Entry;
 
 import org.springframework.util.Assert;
 
@@ -138,27 +137,23 @@ public class BufferedHQCodec extends AbstractLengthBasedCodec implements Buffere
 		{
 			o = toDate(f, o);
 		}
-		f.getSetter().invoke(p, o);
+		f.set(p, o);
 	}
 	
 	private <T> T read(Class<T> protoClassType, ByteBuffer in, ProtocolMeta meta) throws ReflectiveOperationException, CodecException 
 	{
-		T tObj = null;
-		try {
-			tObj = protoClassType.newInstance();
-		} catch (InstantiationException | IllegalAccessException e2) {
-			throw e2;
-		}
+		T tObj = newInstance(protoClassType);
 		
-		for(Entry<Integer, FormatMeta> e : meta.getFormats().entrySet())
+		for(FormatMeta f : meta.getOrderedFormats())
 		{
-			int off = e.getKey();
-			FormatMeta f = e.getValue();
+			int off = f.getOffset();
 			
 			try {
 				readBytesAndSet(tObj, f, in);
 			} catch (IOException e1) {
 				throw new CodecException(off, e1, Type.IO_ERR);
+			} catch (RuntimeException e1) {
+				throw new CodecException(off, e1, Type.BEAN_ERR);
 			}
 			
 		}
@@ -168,7 +163,7 @@ public class BufferedHQCodec extends AbstractLengthBasedCodec implements Buffere
 	
 	private <T> void write(FormatMeta f, T protoClass, ByteBuffer out) throws ReflectiveOperationException, IOException
 	{
-		Object o = f.getGetter().invoke(protoClass);
+		Object o = f.get(protoClass);
 		if(o instanceof Date)
 		{
 			o = fromDate(f, (Date) o);
@@ -218,14 +213,13 @@ public class BufferedHQCodec extends AbstractLengthBasedCodec implements Buffere
 			throw new CodecException(e2, Type.META_ERR);
 		}
 		
-		for(Entry<Integer, FormatMeta> e : metaData.getFormats().entrySet())
+		for(FormatMeta f : metaData.getOrderedFormats())
 		{
-			int off = e.getKey();
-			FormatMeta f = e.getValue();
+			int off = f.getOffset();
 			
 			try {
 				write(f, protoClass, out);
-			} catch (ReflectiveOperationException e1) {
+			} catch (ReflectiveOperationException | RuntimeException e1) {
 				throw new CodecException(off, e1, Type.BEAN_ERR);
 			} catch (IOException e1) {
 				throw new CodecException(off, e1, Type.IO_ERR);
@@ -0,0 +1,384 @@
+package com.reactiva.hazelq.protoc.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.springframework.util.Assert;
+
+import com.reactiva.hazelq.protoc.AbstractLengthBasedCodec;
+import com.reactiva.hazelq.protoc.ByteBufLengthBasedCodec;
+import com.reactiva.hazelq.protoc.CodecException;
+import com.reactiva.hazelq.protoc.CodecException.Type;
+import com.reactiva.hazelq.protoc.FormatMeta;
+import com.reactiva.hazelq.protoc.ProtocolMeta;
+import com.reactiva.hazelq.protoc.dto.HQDataSecHeader;
+import com.reactiva.hazelq.protoc.dto.HQInboundHeader;
+import com.reactiva.hazelq.protoc.dto.HQOutboundHeader;
+import com.reactiva.hazelq.protoc.dto.HQRequest;
+import com.reactiva.hazelq.protoc.dto.HQResponse;
+import com.reactiva.hazelq.protoc.dto.HQTrailer;
+
+import io.netty.buffer.ByteBuf;
+/**
+ * Encode/Decode a pojo bean class according to ITOC protocol specs, writing/reading the fields directly 
+ * on a Netty {@linkplain ByteBuf} at their {@linkplain ProtocolMeta} offsets. Unlike {@linkplain StreamedHQCodec}, 
+ * there is no intermediate byte array or stream for the frame, or for the nested headers.
+ * @author esutdal
+ *
+ */
+public class ByteBufHQCodec extends AbstractLengthBasedCodec implements ByteBufLengthBasedCodec {
+	final Charset charset;
+	public ByteBufHQCodec(Charset charset) {
+		this.charset = charset;
+		this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.ISO_8859_1);
+	}
+	/**
+	 * UTF8 charset
+	 */
+	public ByteBufHQCodec() {
+		this(StandardCharsets.UTF_8);
+	}
+	
+	private static Number readAsNumeric(FormatMeta f, ByteBuf in, int index) throws IOException
+	{
+		switch(f.getLength())
+		{
+			case 1:
+				return in.getByte(index);
+			case 2:
+				return in.getShort(index);
+			case 3:
+				//same byte order as CommonUtil.intTo3Bytes
+				return in.getUnsignedMediumLE(index);
+			case 4:
+				return in.getInt(index);
+			case 8:
+				return in.getLong(index);
+				default:
+					throw new IOException("Unexpected byte length "+f.getLength()+" for field "+f.getFieldName());
+		}
+	}
+	
+	private static byte[] readBinary(FormatMeta f, ByteBuf in, int index)
+	{
+		byte[] b = new byte[f.getLength()];
+		in.getBytes(index, b);
+		return b;
+	}
+	/**
+	 * Read the field at given absolute index of the buffer. Does not modify the reader index.
+	 * @param f
+	 * @param in
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 * @throws CodecException
+	 */
+	protected Object readBytes(FormatMeta f, ByteBuf in, int index) throws IOException, CodecException
+	{
+		Object ret = null;
+		switch(f.getAttr())
+		{
+		case APPHEADER:
+			ret = read(HQDataSecHeader.class, in, index);
+			break;
+		case INHEADER:
+			ret = read(HQInboundHeader.class, in, index);
+			break;
+		case OUTHEADER:
+			ret = read(HQOutboundHeader.class, in, index);
+			break;
+		case TRAILER:
+			ret = read(HQTrailer.class, in, index);
+			break;
+		case NUMERIC:
+			ret = readAsNumeric(f, in, index);
+			break;
+		case TEXT:
+			ret = in.toString(index, f.getLength(), charset);
+			break;
+		case BINARY:
+			ret = readBinary(f, in, index);
+			break;
+		default:
+			break;
+			
+		}
+		return ret;
+	}
+	
+	private <T> T read(Class<T> protoClassType, ByteBuf in, int index) throws CodecException
+	{
+		ProtocolMeta meta = getMeta(protoClassType);
+		try {
+			return read(protoClassType, in, index, meta);
+		} catch (CodecException e) {
+			if(e.getMetaName() == null)
+				e.setMetaName(meta.getName());
+			throw e;
+		} catch (ReflectiveOperationException e) {
+			CodecException ce = new CodecException(e, Type.BEAN_ERR);
+			ce.setMetaName(meta.getName());
+			throw ce;
+		}
+	}
+	
+	private <T> T read(Class<T> protoClassType, ByteBuf in, int index, ProtocolMeta meta) throws ReflectiveOperationException, CodecException 
+	{
+		if(in.writerIndex() - index < meta.getSize())
+		{
+			throw new CodecException("Expecting "+meta.getSize()+" bytes. Got "+(in.writerIndex() - index), index);
+		}
+		T tObj = newInstance(protoClassType);
+		for(FormatMeta f : meta.getOrderedFormats())
+		{
+			int off = f.getOffset();
+			
+			try {
+				Object o = readBytes(f, in, index + off);
+				if(f.isDateFld())
+				{
+					o = toDate(f, o);
+				}
+				f.set(tObj, o);
+			} catch (CodecException e1) {
+				throw e1;
+			} catch (Exception e1) {
+				throw new CodecException(off, e1, Type.IO_ERR);
+			}
+			
+		}
+		
+		return tObj;
+	}
+	
+	private static void writeAsNumeric(FormatMeta f, Object o, ByteBuf out, int index) throws IOException
+	{
+		Number n;
+		try {
+			n = (Number) o;
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("Field => "+f.getFieldName(), e);
+		}
+		switch(f.getLength())
+		{
+			case 1:
+				out.setByte(index, n.byteValue());
+				break;
+			case 2:
+				out.setShort(index, n.shortValue());
+				break;
+			case 3:
+				//same byte order and range as CommonUtil.intTo3Bytes
+				Assert.isTrue(n.intValue() >= 0 && n.intValue() <= 255, "3byte num range [0, 255] both inclusive. Found "+n);
+				out.setMediumLE(index, n.intValue());
+				break;
+			case 4:
+				out.setInt(index, n.intValue());
+				break;
+			case 8:
+				out.setLong(index, n.longValue());
+				break;
+				default:
+					throw new IOException("Unexpected byte length "+f.getLength()+" for field "+f.getFieldName());
+		}
+	}
+	private static void writeBinary(FormatMeta f, Object o, ByteBuf out, int index)
+	{
+		byte[] b;
+		try {
+			b = (byte[]) o;
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("Field => "+f.getFieldName(), e);
+		}
+		int len = Math.min(b.length, f.getLength());
+		out.setBytes(index, b, 0, len);
+		//pad as in FormatMeta.checkBounds
+		for(int i = len; i < f.getLength(); i++)
+		{
+			out.setByte(index + i, '0');
+		}
+	}
+	private final boolean asciiCompatible;
+	/**
+	 * Strings within the ASCII range are written char by char, padded with '*' or truncated 
+	 * as in {@linkplain FormatMeta#checkBounds(Object, Charset)}. Falls back to charset encoding otherwise.
+	 * @param f
+	 * @param o
+	 * @param out
+	 * @param index
+	 */
+	private void writeText(FormatMeta f, Object o, ByteBuf out, int index)
+	{
+		String s = o.toString();
+		int len = f.getLength();
+		boolean ascii = asciiCompatible;
+		for(int i = 0; ascii && i < s.length(); i++)
+		{
+			ascii = s.charAt(i) < 0x80;
+		}
+		if(ascii)
+		{
+			if(f.isStrictSetter())
+			{
+				Assert.isTrue(s.length() == len, "Expecting length: "+len+" found: "+s.length()+" for field "+f.getFieldName());
+			}
+			int n = Math.min(s.length(), len);
+			for(int i = 0; i < n; i++)
+			{
+				out.setByte(index + i, s.charAt(i));
+			}
+			for(int i = n; i < len; i++)
+			{
+				out.setByte(index + i, '*');
+			}
+		}
+		else
+		{
+			byte[] bytes = f.checkBounds(s, charset).toString().getBytes(charset);
+			out.setBytes(index, bytes, 0, Math.min(bytes.length, len));
+			if(bytes.length < len)
+				out.setZero(index + bytes.length, len - bytes.length);
+		}
+	}
+	/**
+	 * Write the field at given absolute index of the buffer. Does not modify the writer index.
+	 * @param f
+	 * @param o
+	 * @param out
+	 * @param index
+	 * @throws IOException
+	 * @throws CodecException
+	 */
+	protected void writeBytes(FormatMeta f, Object o, ByteBuf out, int index) throws IOException, CodecException
+	{
+		if(o == null)
+		{
+			out.setZero(index, f.getLength());
+			return;
+		}
+		switch(f.getAttr())
+		{
+		case APPHEADER:
+		case INHEADER:
+		case OUTHEADER:
+		case TRAILER:
+			write(o, getMeta(o.getClass()), out, index);
+			break;
+		case NUMERIC:
+			writeAsNumeric(f, o, out, index);
+			break;
+		case TEXT:
+			writeText(f, o, out, index);
+			break;
+		case BINARY:
+			writeBinary(f, o, out, index);
+			break;
+		default:
+			out.setZero(index, f.getLength());
+			break;
+			
+		}
+	}
+	
+	private void write(Object protoClass, ProtocolMeta meta, ByteBuf out, int index) throws CodecException
+	{
+		for(FormatMeta f : meta.getOrderedFormats())
+		{
+			int off = f.getOffset();
+			
+			try {
+				Object o = f.get(protoClass);
+				if(o instanceof Date)
+				{
+					o = fromDate(f, (Date) o);
+				}
+				writeBytes(f, o, out, index + off);
+			} catch (CodecException e1) {
+				throw e1;
+			} catch (ReflectiveOperationException | RuntimeException e1) {
+				throw new CodecException(meta.getName(), off, e1, Type.BEAN_ERR);
+			} catch (IOException e1) {
+				throw new CodecException(meta.getName(), off, e1, Type.IO_ERR);
+			}
+		}
+	}
+	
+	@Override
+	public <T> void encode(T protoClass, ByteBuf out) throws CodecException
+	{
+		Assert.notNull(protoClass, "Null instance");
+		//cached meta is validated once, when prepared
+		writeFrame(protoClass, getMeta(protoClass.getClass()), out);
+	}
+	
+	@Override
+	public <T> void encode(T protoClass, ProtocolMeta metaData, ByteBuf out) throws CodecException {
+		try {
+			Assert.notNull(metaData);
+			validate(metaData, protoClass.getClass());
+		} catch (Exception e2) {
+			throw new CodecException(e2, Type.META_ERR);
+		}
+		writeFrame(protoClass, metaData, out);
+	}
+	
+	private <T> void writeFrame(T protoClass, ProtocolMeta metaData, ByteBuf out) throws CodecException {
+		int size = metaData.getSize();
+		out.ensureWritable(size);
+		int index = out.writerIndex();
+		write(protoClass, metaData, out, index);
+		if(protoClass instanceof HQRequest || protoClass instanceof HQResponse)
+		{
+			//totalMessageLenLLLL, the leading 4 bytes of the inbound/outbound header
+			out.setInt(index, size);
+		}
+		out.writerIndex(index + size);
+	}
+	
+	private void validate(ProtocolMeta metaData, Class<?> protoType) {
+		metaData.validate();
+		for(FormatMeta fm : metaData.getFormats().values())
+		{
+			fm.introspect(protoType);
+		}
+	}
+	
+	@Override
+	public <T> T decode(Class<T> protoClassType, ByteBuf in) throws CodecException 
+	{
+		//cached meta is validated once, when prepared
+		return readFrame(protoClassType, getMeta(protoClassType), in);
+	}
+	
+	@Override
+	public <T> T decode(Class<T> protoClassType, ProtocolMeta metaData, ByteBuf in) throws CodecException {
+		try {
+			Assert.notNull(metaData);
+			validate(metaData, protoClassType);
+		} catch (Exception e2) {
+			throw new CodecException(e2, Type.META_ERR);
+		}
+		return readFrame(protoClassType, metaData, in);
+	}
+	
+	private <T> T readFrame(Class<T> protoClassType, ProtocolMeta metaData, ByteBuf in) throws CodecException {
+		try {
+			T t = read(protoClassType, in, in.readerIndex(), metaData);
+			in.skipBytes(metaData.getSize());
+			return t;
+		} catch (CodecException e) {
+			if(e.getMetaName() == null)
+				e.setMetaName(metaData.getName());
+			throw e;
+		} catch (ReflectiveOperationException e) {
+			CodecException ce = new CodecException(e, Type.BEAN_ERR);
+			ce.setMetaName(metaData.getName());
+			throw ce;
+		}
+	}
+	
+}
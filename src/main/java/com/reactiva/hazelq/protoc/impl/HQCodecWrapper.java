@@ -10,17 +10,21 @@ import java.nio.charset.Charset;
 import org.springframework.util.Assert;
 
 import com.reactiva.hazelq.protoc.BufferedLengthBasedCodec;
+import com.reactiva.hazelq.protoc.ByteBufLengthBasedCodec;
 import com.reactiva.hazelq.protoc.CodecException;
 import com.reactiva.hazelq.protoc.LengthBasedCodec;
 import com.reactiva.hazelq.protoc.ProtocolMeta;
 import com.reactiva.hazelq.protoc.StreamedLengthBasedCodec;
+
+import io.netty.buffer.ByteBuf;
 /**
  * A wrapper class to make use either of streamed or buffered transport, in a configurable manner.
- * <b>NOTE</b>: buffered transport is experimental however, and hence not recommended.
+ * <b>NOTE</b>: buffered transport is experimental however, and hence not recommended. Decoding
+ * directly from Netty {@linkplain ByteBuf} is available in either case.
  * @author esutdal
  *
  */
-public class HQCodecWrapper implements LengthBasedCodec,StreamedLengthBasedCodec,BufferedLengthBasedCodec {
+public class HQCodecWrapper implements LengthBasedCodec,StreamedLengthBasedCodec,BufferedLengthBasedCodec,ByteBufLengthBasedCodec {
 
 	/**
 	 * Validate the meta data of a protocol class instance. Would throw exception if not valid.
@@ -37,6 +41,7 @@ public class HQCodecWrapper implements LengthBasedCodec,StreamedLengthBasedCodec
 	private StreamedHQCodec str = null;
 	private BufferedHQCodec buff = null;
 	private LengthBasedCodec fl;
+	private final ByteBufHQCodec direct;
 	/**
 	 * 
 	 * @param useByteBuf
@@ -50,6 +55,24 @@ public class HQCodecWrapper implements LengthBasedCodec,StreamedLengthBasedCodec
 			str = new StreamedHQCodec(charset);
 			fl = str;
 		}
+		direct = new ByteBufHQCodec(charset);
+	}
+	
+	@Override
+	public <T> void encode(T protoClass, ByteBuf out) throws CodecException {
+		direct.encode(protoClass, out);
+	}
+	@Override
+	public <T> void encode(T protoClass, ProtocolMeta metaData, ByteBuf out) throws CodecException {
+		direct.encode(protoClass, metaData, out);
+	}
+	@Override
+	public <T> T decode(Class<T> protoClassType, ByteBuf in) throws CodecException {
+		return direct.decode(protoClassType, in);
+	}
+	@Override
+	public <T> T decode(Class<T> protoClassType, ProtocolMeta metaData, ByteBuf in) throws CodecException {
+		return direct.decode(protoClassType, metaData, in);
 	}
 	
 	@Override
@@ -8,7 +8,6 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
@@ -219,22 +218,16 @@ public class StreamedHQCodec extends AbstractLengthBasedCodec implements Streame
 		{
 			o = toDate(f, o);
 		}
-		f.getSetter().invoke(p, o);
+		f.set(p, o);
 	}
 	
 	private <T> T read(Class<T> protoClassType, DataInputStream in, ProtocolMeta meta) throws ReflectiveOperationException, CodecException 
 	{
-		T tObj = null;
-		try {
-			tObj = protoClassType.newInstance();
-		} catch (InstantiationException | IllegalAccessException e2) {
-			throw e2;
-		}
+		T tObj = newInstance(protoClassType);
 		
-		for(Entry<Integer, FormatMeta> e : meta.getFormats().entrySet())
+		for(FormatMeta f : meta.getOrderedFormats())
 		{
-			int off = e.getKey();
-			FormatMeta f = e.getValue();
+			int off = f.getOffset();
 			
 			try {
 				readBytesAndSet(tObj, f, in);
@@ -250,7 +243,7 @@ public class StreamedHQCodec extends AbstractLengthBasedCodec implements Streame
 	
 	private <T> void write(FormatMeta f, T protoClass, DataOutputStream out, AtomicInteger count) throws ReflectiveOperationException, IOException, CodecException
 	{
-		Object o = f.getGetter().invoke(protoClass);
+		Object o = f.get(protoClass);
 		if(o instanceof Date)
 		{
 			o = fromDate(f, (Date) o);
@@ -317,14 +310,13 @@ public class StreamedHQCodec extends AbstractLengthBasedCodec implements Streame
 			throw new CodecException(e2, Type.META_ERR);
 		}
 		AtomicInteger count = new AtomicInteger();
-		for(Entry<Integer, FormatMeta> e : metaData.getFormats().entrySet())
+		for(FormatMeta f : metaData.getOrderedFormats())
 		{
-			int off = e.getKey();
-			FormatMeta f = e.getValue();
+			int off = f.getOffset();
 			
 			try {
 				write(f, protoClass, out, count);
-			} catch (ReflectiveOperationException e1) {
+			} catch (ReflectiveOperationException | RuntimeException e1) {
 				throw new CodecException(metaData.getName(), off, e1, Type.BEAN_ERR);
 			} catch (IOException e1) {
 				throw new CodecException(metaData.getName(), off, e1, Type.IO_ERR);
@@ -53,8 +53,18 @@ public class TimeUIDComparator implements Comparator<UUID>
           return p1 ? 1 : p2 ? -1 : 0;
       }
 
-      long msb1 = b1.getLong(s1);
-      long msb2 = b2.getLong(s2);
+      return compare(b1.getLong(s1), b1.getLong(s1 + 8), b2.getLong(s2), b2.getLong(s2 + 8));
+  }
+  /**
+   * Compare two time UUIDs given as their most and least significant bits. Does not allocate.
+   * @param msb1
+   * @param lsb1
+   * @param msb2
+   * @param lsb2
+   * @return
+   */
+  public static int compare(long msb1, long lsb1, long msb2, long lsb2)
+  {
       msb1 = reorderTimestampBytes(msb1);
       msb2 = reorderTimestampBytes(msb2);
 
@@ -67,9 +77,7 @@ public class TimeUIDComparator implements Comparator<UUID>
 
       // this has to be a signed per-byte comparison for compatibility
       // so we transform the bytes so that a simple long comparison is equivalent
-      long lsb1 = signedBytesToNativeLong(b1.getLong(s1 + 8));
-      long lsb2 = signedBytesToNativeLong(b2.getLong(s2 + 8));
-      return Long.compare(lsb1, lsb2);
+      return Long.compare(signedBytesToNativeLong(lsb1), signedBytesToNativeLong(lsb2));
   }
   
   private static long topbyte(long topbyte)
@@ -93,7 +101,7 @@ public class TimeUIDComparator implements Comparator<UUID>
   }
   @Override
   public int compare(UUID u1, UUID u2) {
-    return compareCustom(ByteBuffer.wrap(TimeUIDGen.decompose(u1)), ByteBuffer.wrap(TimeUIDGen.decompose(u2)));
+    return compare(u1.getMostSignificantBits(), u1.getLeastSignificantBits(), u2.getMostSignificantBits(), u2.getLeastSignificantBits());
   }
   
 }
\ No newline at end of file
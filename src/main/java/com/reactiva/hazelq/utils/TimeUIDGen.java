@@ -101,6 +101,25 @@ public class TimeUIDGen
         return new UUID(createTime(fromUnixTimestamp(when, nanos)), clockSeqAndNode);
     }
 
+    /**
+     * Creates a type 1 UUID from a timestamp in 100-nanoseconds units since the UUID epoch.
+     * Unlike {@link #getTimeUUID()}, uniqueness of the timestamp is left to the caller.
+     *
+     * @return a UUID instance
+     */
+    public static UUID getTimeUUIDFromTicks(long ticks)
+    {
+        return new UUID(createTime(ticks), clockSeqAndNode);
+    }
+
+    /**
+     * @return the current time in 100-nanoseconds units since the UUID epoch
+     */
+    public static long currentTicks()
+    {
+        return fromUnixTimestamp(System.currentTimeMillis());
+    }
+
     /** creates a type 1 uuid from raw bytes. */
     public static UUID getUUID(ByteBuffer raw)
     {
@@ -0,0 +1,75 @@
+/* ============================================================================
+*
+* FILE: VirtualThreads.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+/**
+ * Access to virtual threads (JDK 21+), while still building for Java 8. Resolved 
+ * reflectively, once.
+ */
+public class VirtualThreads {
+
+  private static final Method NEW_EXECUTOR;
+  static
+  {
+    Method m = null;
+    try {
+      m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      //pre JDK 21
+    }
+    NEW_EXECUTOR = m;
+  }
+  /**
+   * 
+   * @return if virtual threads are supported by the running JVM
+   */
+  public static boolean isSupported()
+  {
+    return NEW_EXECUTOR != null;
+  }
+  /**
+   * An executor starting a new virtual thread for each task.
+   * @return the executor, or null if not supported
+   */
+  public static ExecutorService newExecutor()
+  {
+    if(NEW_EXECUTOR != null)
+    {
+      try {
+        return (ExecutorService) NEW_EXECUTOR.invoke(null);
+      } catch (Exception e) {
+        //fall through
+      }
+    }
+    return null;
+  }
+}
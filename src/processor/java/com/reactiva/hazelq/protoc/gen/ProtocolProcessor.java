@@ -0,0 +1,361 @@
+package com.reactiva.hazelq.protoc.gen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+/**
+ * Build time processor for classes annotated with <i>@Protocol</i>. Checks that the <i>@Format</i> fields
+ * are laid out contiguously from offset 0, and generates a <i>ProtocolLayout</i> per class with straight 
+ * field accessors. The layouts are listed under <i>META-INF/services</i>, and form the <i>ProtocolRegistry</i> 
+ * at runtime.
+ * <p>
+ * Works on annotation names only, so that it can be compiled ahead of the main sources.
+ * @author esutdal
+ *
+ */
+@SupportedAnnotationTypes(ProtocolProcessor.PROTOCOL)
+public class ProtocolProcessor extends AbstractProcessor {
+
+	static final String PKG = "com.reactiva.hazelq.protoc";
+	static final String PROTOCOL = PKG + ".Protocol";
+	static final String FORMAT = PKG + ".Format";
+	static final String LAYOUT = PKG + ".ProtocolLayout";
+	static final String LAYOUT_SUFFIX = "Layout";
+	
+	private final Set<String> generated = new LinkedHashSet<>();
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	private static class Field
+	{
+		final VariableElement element;
+		final int offset, length;
+		final String attribute, constant, dateFormat;
+		final boolean dateField, strictSetter;
+		Field(VariableElement element, Map<String, Object> values) {
+			this.element = element;
+			offset = (Integer) values.get("offset");
+			length = (Integer) values.get("length");
+			attribute = values.get("attribute").toString();
+			constant = (String) values.get("constant");
+			dateFormat = (String) values.get("dateFormat");
+			dateField = (Boolean) values.get("dateField");
+			strictSetter = (Boolean) values.get("strictSetter");
+		}
+		String name() {
+			return element.getSimpleName().toString();
+		}
+	}
+	
+	private AnnotationMirror annotation(Element e, String type)
+	{
+		for(AnnotationMirror am : e.getAnnotationMirrors())
+		{
+			if(((TypeElement) am.getAnnotationType().asElement()).getQualifiedName().contentEquals(type))
+				return am;
+		}
+		return null;
+	}
+	private Map<String, Object> values(AnnotationMirror am)
+	{
+		Map<String, Object> map = new HashMap<>();
+		for(Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv.getElementUtils().getElementValuesWithDefaults(am).entrySet())
+		{
+			map.put(e.getKey().getSimpleName().toString(), e.getValue().getValue());
+		}
+		return map;
+	}
+	/**
+	 * Format fields of the type and its super types, sorted by offset.
+	 * @param type
+	 * @return
+	 */
+	private List<Field> fields(TypeElement type)
+	{
+		List<Field> fields = new ArrayList<>();
+		TypeElement t = type;
+		while(t != null)
+		{
+			for(VariableElement ve : ElementFilter.fieldsIn(t.getEnclosedElements()))
+			{
+				AnnotationMirror am = annotation(ve, FORMAT);
+				if(am != null)
+					fields.add(new Field(ve, values(am)));
+			}
+			TypeMirror sup = t.getSuperclass();
+			t = sup.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) sup).asElement() : null;
+		}
+		Collections.sort(fields, new Comparator<Field>() {
+
+			@Override
+			public int compare(Field o1, Field o2) {
+				return Integer.compare(o1.offset, o2.offset);
+			}
+		});
+		return fields;
+	}
+	private void error(Element e, String msg)
+	{
+		processingEnv.getMessager().printMessage(Kind.ERROR, msg, e);
+	}
+	/**
+	 * Same rules as ProtocolMeta.validate, and FormatMeta for numeric lengths.
+	 * @param type
+	 * @param fields
+	 * @return
+	 */
+	private boolean validate(TypeElement type, List<Field> fields)
+	{
+		boolean valid = true;
+		int off = 0, len = 0;
+		for(Field f : fields)
+		{
+			if(f.length <= 0)
+			{
+				error(f.element, "Length should be positive. Found "+f.length+" for field "+f.name());
+				valid = false;
+			}
+			if(f.offset != off + len)
+			{
+				error(f.element, "Incorrect layout at offset:" + f.offset + ". Expected offset "+(off + len)+" after field of length "+len);
+				valid = false;
+			}
+			if("NUMERIC".equals(f.attribute) && !(f.length == 1 || f.length == 2 || f.length == 3 || f.length == 4 || f.length == 8))
+			{
+				error(f.element, "Unexpected number length "+f.length+" for field "+f.name());
+				valid = false;
+			}
+			off = f.offset;
+			len = f.length;
+		}
+		return valid;
+	}
+	private static String capitalize(String name)
+	{
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+	private ExecutableElement method(TypeElement type, String name, int params)
+	{
+		for(ExecutableElement m : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type)))
+		{
+			if(m.getSimpleName().contentEquals(name) && m.getParameters().size() == params && m.getModifiers().contains(Modifier.PUBLIC))
+				return m;
+		}
+		return null;
+	}
+	private static String boxed(TypeMirror t)
+	{
+		switch(t.getKind())
+		{
+		case BOOLEAN: return "java.lang.Boolean";
+		case BYTE: return "java.lang.Byte";
+		case SHORT: return "java.lang.Short";
+		case CHAR: return "java.lang.Character";
+		case INT: return "java.lang.Integer";
+		case LONG: return "java.lang.Long";
+		case FLOAT: return "java.lang.Float";
+		case DOUBLE: return "java.lang.Double";
+		default: 
+			return erasure(t);
+		}
+	}
+	private static String erasure(TypeMirror t)
+	{
+		String s = t.toString();
+		int i = s.indexOf('<');
+		return i > 0 ? s.substring(0, i) : s;
+	}
+	private static String literal(String s)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+		for(char c : s.toCharArray())
+		{
+			switch(c)
+			{
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	private void generate(TypeElement type, String protoName, List<Field> fields) throws IOException
+	{
+		String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String simple = type.getSimpleName() + LAYOUT_SUFFIX;
+		String qualified = pkg.isEmpty() ? simple : pkg + "." + simple;
+		String bean = type.getQualifiedName().toString();
+		
+		JavaFileObject jfo = processingEnv.getFiler().createSourceFile(qualified, type);
+		try(PrintWriter w = new PrintWriter(jfo.openWriter()))
+		{
+			w.println("/* Generated by "+ProtocolProcessor.class.getSimpleName()+". Do not edit. */");
+			if(!pkg.isEmpty())
+				w.println("package "+pkg+";");
+			w.println();
+			w.println("public final class "+simple+" implements "+LAYOUT+"<"+bean+"> {");
+			w.println();
+			w.println("\t@Override");
+			w.println("\tpublic Class<"+bean+"> type() {");
+			w.println("\t\treturn "+bean+".class;");
+			w.println("\t}");
+			w.println("\t@Override");
+			w.println("\tpublic "+bean+" newInstance() {");
+			w.println("\t\treturn new "+bean+"();");
+			w.println("\t}");
+			w.println("\t@Override");
+			w.println("\tpublic "+PKG+".ProtocolMeta meta() {");
+			w.println("\t\t"+PKG+".ProtocolMeta meta = new "+PKG+".ProtocolMeta("+literal(protoName)+");");
+			w.println("\t\t"+PKG+".FormatMeta f;");
+			for(Field f : fields)
+			{
+				String cap = capitalize(f.name());
+				ExecutableElement setter = method(type, "set"+cap, 1);
+				String param = boxed(setter.getParameters().get(0).asType());
+				w.println("\t\tf = new "+PKG+".FormatMeta("+f.offset+", "+f.length+", "+PKG+".Attribute."+f.attribute+", "+literal(f.name())+");");
+				w.println("\t\tf.setConstant("+literal(f.constant)+");");
+				w.println("\t\tf.setDateFld("+f.dateField+");");
+				w.println("\t\tf.setDateFormat("+literal(f.dateFormat)+");");
+				w.println("\t\tf.setStrictSetter("+f.strictSetter+");");
+				w.println("\t\tf.accessors(new java.util.function.Function<Object, Object>() {");
+				w.println("\t\t\t@Override");
+				w.println("\t\t\tpublic Object apply(Object bean) {");
+				w.println("\t\t\t\treturn (("+bean+") bean).get"+cap+"();");
+				w.println("\t\t\t}");
+				w.println("\t\t}, new java.util.function.BiConsumer<Object, Object>() {");
+				w.println("\t\t\t@Override");
+				w.println("\t\t\tpublic void accept(Object bean, Object value) {");
+				w.println("\t\t\t\t(("+bean+") bean).set"+cap+"(("+param+") value);");
+				w.println("\t\t\t}");
+				w.println("\t\t});");
+				w.println("\t\tmeta.add(f);");
+			}
+			w.println("\t\tmeta.validate();");
+			w.println("\t\treturn meta;");
+			w.println("\t}");
+			w.println("}");
+		}
+		generated.add(qualified);
+	}
+	
+	private void process(TypeElement type)
+	{
+		if(type.getModifiers().contains(Modifier.ABSTRACT) || type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC))
+		{
+			error(type, "Protocol class should be a concrete top level or static class");
+			return;
+		}
+		String protoName = (String) values(annotation(type, PROTOCOL)).get("name");
+		List<Field> fields = fields(type);
+		boolean valid = validate(type, fields);
+		
+		for(Field f : fields)
+		{
+			String cap = capitalize(f.name());
+			if(method(type, "get"+cap, 0) == null)
+			{
+				error(f.element, f.name() + " Expecting a public getter");
+				valid = false;
+			}
+			if(method(type, "set"+cap, 1) == null)
+			{
+				error(f.element, f.name() + " Expecting a public setter");
+				valid = false;
+			}
+		}
+		boolean hasCtor = false;
+		for(ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements()))
+		{
+			if(c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC))
+				hasCtor = true;
+		}
+		if(!hasCtor)
+		{
+			error(type, "Protocol class should have a public no-arg constructor");
+			valid = false;
+		}
+		if(valid && !(type.getEnclosingElement() instanceof PackageElement))
+		{
+			//generated layout is a top level class, referring to the nested type by name
+			valid = type.getModifiers().contains(Modifier.PUBLIC);
+		}
+		if (valid) {
+			try {
+				generate(type, protoName, fields);
+			} catch (IOException e) {
+				error(type, "Unable to generate protocol layout. " + e);
+			} 
+		}
+	}
+	private void writeRegistry() throws IOException
+	{
+		FileObject fo = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/"+LAYOUT);
+		try(Writer w = fo.openWriter())
+		{
+			for(String s : generated)
+			{
+				w.write(s);
+				w.write("\n");
+			}
+		}
+	}
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement protocol = processingEnv.getElementUtils().getTypeElement(PROTOCOL);
+		if(protocol != null)
+		{
+			for(Element e : roundEnv.getElementsAnnotatedWith(protocol))
+			{
+				if(e.getKind() == ElementKind.CLASS)
+					process((TypeElement) e);
+			}
+		}
+		if(roundEnv.processingOver() && !generated.isEmpty())
+		{
+			try {
+				writeRegistry();
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write protocol registry. " + e);
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,136 @@
+/* ============================================================================
+*
+* FILE: ProtocolCodecTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import com.reactiva.hazelq.protoc.dto.HQDataSecHeader;
+import com.reactiva.hazelq.protoc.dto.HQInboundHeader;
+import com.reactiva.hazelq.protoc.dto.HQOutboundHeader;
+import com.reactiva.hazelq.protoc.dto.HQRequest;
+import com.reactiva.hazelq.protoc.dto.HQResponse;
+import com.reactiva.hazelq.protoc.impl.ByteBufHQCodec;
+import com.reactiva.hazelq.protoc.impl.StreamedHQCodec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+/**
+ * The direct {@linkplain ByteBufHQCodec} should produce the same frames as the reference {@linkplain StreamedHQCodec}.
+ */
+public class ProtocolCodecTests {
+
+  private final StreamedHQCodec streamed = new StreamedHQCodec();
+  private final ByteBufHQCodec direct = new ByteBufHQCodec();
+  
+  private static HQDataSecHeader appHeader()
+  {
+    HQDataSecHeader h = new HQDataSecHeader();
+    h.setMidName("MID0001");
+    h.setLogicalPage("LP");
+    h.setSession("SESSION1");
+    h.setMessage("hello world");
+    h.setIMS("IMS1");
+    return h;
+  }
+  private static HQResponse response()
+  {
+    HQOutboundHeader oh = new HQOutboundHeader();
+    oh.setClientID("CLIENT01");
+    oh.setTraceOption("ON");
+    oh.setItocHeaderPrefixZZ(new byte[]{1, 2});
+    HQResponse resp = new HQResponse();
+    resp.setMVSOutboundITOCHeader(oh);
+    resp.setApplicationHeader(appHeader());
+    return resp;
+  }
+  private static HQRequest request()
+  {
+    HQInboundHeader ih = new HQInboundHeader();
+    ih.setClientID("CLIENT01");
+    ih.setTPIPEName("TPIPE1");
+    ih.setSendSequenceNumber("0042");
+    ih.setItocHeaderLenLL(new byte[]{0, 108});
+    HQRequest req = new HQRequest();
+    req.setMVSInboundITOCHeader(ih);
+    req.setApplicationHeader(appHeader());
+    return req;
+  }
+  private byte[] streamEncode(Object o) throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    streamed.encode(o, out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+  private byte[] directEncode(Object o) throws Exception
+  {
+    ByteBuf buf = Unpooled.buffer();
+    try {
+      direct.encode(o, buf);
+      byte[] b = new byte[buf.readableBytes()];
+      buf.readBytes(b);
+      return b;
+    } finally {
+      buf.release();
+    }
+  }
+  @Test
+  public void testResponseEncodeIdentical() throws Exception
+  {
+    HQResponse resp = response();
+    byte[] expected = streamEncode(resp);
+    byte[] actual = directEncode(resp);
+    assertEquals(direct.sizeof(HQResponse.class), actual.length);
+    assertArrayEquals(expected, actual);
+  }
+  @Test
+  public void testRequestEncodeIdentical() throws Exception
+  {
+    HQRequest req = request();
+    assertArrayEquals(streamEncode(req), directEncode(req));
+  }
+  @Test
+  public void testRequestDecodeRoundTrip() throws Exception
+  {
+    byte[] frame = streamEncode(request());
+    ByteBuf in = Unpooled.wrappedBuffer(frame);
+    HQRequest fromBuf = direct.decode(HQRequest.class, in);
+    assertEquals(0, in.readableBytes());
+    assertArrayEquals(frame, directEncode(fromBuf));
+    assertArrayEquals(frame, streamEncode(fromBuf));
+    assertEquals("CLIENT01", fromBuf.getMVSInboundITOCHeader().getClientID().trim());
+  }
+}
@@ -0,0 +1,134 @@
+/* ============================================================================
+*
+* FILE: OffHeapStoreTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OffHeapStoreTests {
+
+  private static byte[] bytes(int length, int fill)
+  {
+    byte[] b = new byte[length];
+    Arrays.fill(b, (byte) fill);
+    return b;
+  }
+  
+  @Test
+  public void testCopyAndRead() throws IOException
+  {
+    OffHeapStore store = new OffHeapStore(0, 100, 0.5);
+    OffHeapStore.Slot s1 = store.copy(bytes(30, 1));
+    assertArrayEquals(bytes(30, 1), s1.toArray());
+    
+    OffHeapStore.Slot s2 = store.read(new DataInputStream(new ByteArrayInputStream(bytes(250, 2))), 250);
+    assertArrayEquals(bytes(250, 2), s2.toArray());
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    s2.writeTo(new DataOutputStream(out));
+    assertArrayEquals(bytes(250, 2), out.toByteArray());
+    assertEquals(280, store.getLiveBytes());
+  }
+  
+  @Test
+  public void testCompactMovesSurvivors()
+  {
+    OffHeapStore store = new OffHeapStore(0, 100, 0.5);
+    List<OffHeapStore.Slot> slots = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      slots.add(store.copy(bytes(30, i)));
+    }
+    //3 full segments and the current one
+    assertEquals(400, store.getAllocatedBytes());
+    
+    store.release(slots.get(0));
+    store.release(slots.get(1));
+    store.release(slots.get(1));
+    assertEquals(240, store.getLiveBytes());
+    
+    store.compact();
+    //the survivor of the first segment is moved, and the segment dropped
+    assertEquals(240, store.getLiveBytes());
+    assertEquals(300, store.getAllocatedBytes());
+    for (int i = 2; i < 10; i++) {
+      assertArrayEquals(bytes(30, i), slots.get(i).toArray());
+    }
+    //a released payload stays readable
+    assertArrayEquals(bytes(30, 0), slots.get(0).toArray());
+  }
+  
+  @Test
+  public void testReleasedSegmentDropped()
+  {
+    OffHeapStore store = new OffHeapStore(0, 100, 0.1);
+    List<OffHeapStore.Slot> slots = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      slots.add(store.copy(bytes(50, i)));
+    }
+    OffHeapStore.Slot big = store.copy(bytes(300, 9));
+    assertEquals(500, store.getAllocatedBytes());
+    
+    store.release(slots.get(0));
+    store.release(slots.get(1));
+    store.release(big);
+    store.compact();
+    assertEquals(100, store.getLiveBytes());
+    assertEquals(100, store.getAllocatedBytes());
+  }
+  
+  @Test
+  public void testCollectedSlotNotLive() throws InterruptedException
+  {
+    OffHeapStore store = new OffHeapStore(0, 100, 0.5);
+    OffHeapStore.Slot kept = store.copy(bytes(40, 1));
+    store.copy(bytes(40, 2));
+    store.copy(bytes(40, 3));
+    for (int i = 0; i < 50 && store.getLiveBytes() > 40; i++) {
+      System.gc();
+      Thread.sleep(20);
+      store.drainCleared();
+    }
+    assertEquals(40, store.getLiveBytes());
+    store.compact();
+    assertTrue(store.getAllocatedBytes() <= 100);
+    assertArrayEquals(bytes(40, 1), kept.toArray());
+  }
+}
@@ -0,0 +1,156 @@
+/* ============================================================================
+*
+* FILE: PrefetchCreditsTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PrefetchCreditsTests {
+
+  /**
+   * Reserve and take messages of the given size, giving back what does not fit.
+   * @return messages taken
+   */
+  private static int fetch(PrefetchCredits credits, int max, long size)
+  {
+    int reserved = credits.tryReserve(max);
+    int taken = 0;
+    while(taken < reserved && credits.take(size))
+    {
+      taken++;
+    }
+    credits.unreserve(reserved - taken);
+    return taken;
+  }
+  
+  @Test
+  public void testCountWindow()
+  {
+    PrefetchCredits credits = new PrefetchCredits(10, Long.MAX_VALUE);
+    assertEquals(10, credits.available());
+    assertEquals(4, fetch(credits, 4, 100));
+    assertEquals(6, credits.available());
+    assertEquals(6, fetch(credits, 10, 100));
+    assertEquals(0, credits.available());
+    credits.release(3, 300);
+    assertEquals(3, credits.available());
+    assertEquals(7, credits.getMessages());
+    assertEquals(700, credits.getBytes());
+  }
+  
+  @Test
+  public void testConcurrentReservations()
+  {
+    PrefetchCredits credits = new PrefetchCredits(10, Long.MAX_VALUE);
+    //fetches in progress share the window
+    assertEquals(8, credits.tryReserve(8));
+    assertEquals(2, credits.tryReserve(8));
+    assertEquals(0, credits.tryReserve(8));
+    credits.unreserve(5);
+    assertEquals(5, credits.available());
+    assertEquals(5, credits.getMessages());
+    assertEquals(0, credits.getBytes());
+  }
+  
+  @Test
+  public void testByteWindow()
+  {
+    PrefetchCredits credits = new PrefetchCredits(10, 1000);
+    //sizes not known yet, the messages not fitting are handed back
+    assertEquals(10, credits.tryReserve(10));
+    assertTrue(credits.take(400));
+    assertTrue(credits.take(400));
+    assertFalse(credits.take(400));
+    credits.unreserve(8);
+    assertEquals(2, credits.getMessages());
+    assertEquals(800, credits.getBytes());
+    
+    //sized by the last message seen
+    assertEquals(0, credits.available());
+    credits.release(1, 400);
+    assertEquals(1, credits.available());
+    credits.release(1, 400);
+    assertEquals(2, credits.available());
+  }
+  
+  @Test
+  public void testOversizeMessage()
+  {
+    PrefetchCredits credits = new PrefetchCredits(10, 1000);
+    assertEquals(1, fetch(credits, 10, 5000));
+    assertEquals(0, credits.available());
+    credits.release(1, 5000);
+    //an empty window still takes one
+    assertEquals(1, credits.available());
+  }
+  
+  @Test
+  public void testReserveTimesOut() throws InterruptedException
+  {
+    PrefetchCredits credits = new PrefetchCredits(1, Long.MAX_VALUE);
+    assertEquals(1, fetch(credits, 1, 1));
+    long start = System.nanoTime();
+    assertEquals(0, credits.reserve(1, 20, TimeUnit.MILLISECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+  }
+  
+  @Test
+  public void testReleaseWakesWaiter() throws InterruptedException
+  {
+    final PrefetchCredits credits = new PrefetchCredits(2, Long.MAX_VALUE);
+    assertEquals(2, fetch(credits, 2, 10));
+    final AtomicInteger granted = new AtomicInteger(-1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          granted.set(credits.reserve(2, 10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    };
+    t.start();
+    Thread.sleep(50);
+    assertEquals(1, done.getCount());
+    credits.release(1, 10);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, granted.get());
+    assertEquals(2, credits.getMessages());
+  }
+}
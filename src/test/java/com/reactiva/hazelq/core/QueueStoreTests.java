@@ -0,0 +1,237 @@
+/* ============================================================================
+*
+* FILE: QueueStoreTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hazelcast.config.ClasspathXmlConfig;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.reactiva.hazelq.Message;
+
+public class QueueStoreTests {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+  private HazelcastInstance hz;
+  
+  private static final String QUEUE = "storeTestQ";
+  
+  /**
+   * A standalone member, storing write through to the temporary folder.
+   * @return
+   * @throws IOException
+   */
+  private HazelcastInstance start() throws IOException
+  {
+    Config c = new ClasspathXmlConfig("hazelcast.xml");
+    c.setProperty("hazelcast.phone.home.enabled", "false");
+    c.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+    c.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+    MapStoreConfig msc = c.getMapConfig(MQueueImpl.mapName("*")).getMapStoreConfig();
+    msc.setWriteDelaySeconds(0);
+    msc.getProperties().setProperty(QueueStore.PROP_DIR, tmp.getRoot().getPath());
+    msc.getProperties().setProperty(QueueStore.PROP_SEGMENT_BYTES, "65536");
+    hz = Hazelcast.newHazelcastInstance(c);
+    return hz;
+  }
+  @After
+  public void shutdown()
+  {
+    if(hz != null)
+      hz.shutdown();
+  }
+  private IMap<QID, QMessage> queueMap()
+  {
+    return hz.getMap(MQueueImpl.mapName(QUEUE));
+  }
+  private Map<QID, String> write(int n)
+  {
+    IMap<QID, QMessage> map = queueMap();
+    Map<QID, String> written = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      QID k = new QID(UUID.randomUUID());
+      map.set(k, new QMessage(new Message("m" + i, QUEUE)));
+      written.put(k, "m" + i);
+    }
+    return written;
+  }
+  private static QMessage message(String payload)
+  {
+    return new QMessage(new Message(payload, QUEUE));
+  }
+  private static String payload(QMessage m)
+  {
+    return m != null ? m.getPayload().getPayloadAsUTF() : null;
+  }
+  private int partitionOf(QID key)
+  {
+    return hz.getPartitionService().getPartition(key).getPartitionId();
+  }
+  private QID keyOf(int partition)
+  {
+    QID k;
+    do {
+      k = new QID(UUID.randomUUID());
+    } while (partitionOf(k) != partition);
+    return k;
+  }
+  private void restart() throws IOException
+  {
+    hz.shutdown();
+    start();
+  }
+  
+  @Test
+  public void testReloadAfterRestart() throws IOException
+  {
+    start();
+    Map<QID, String> written = write(500);
+    //consumed before the restart
+    QID removed = written.keySet().iterator().next();
+    queueMap().delete(removed);
+    written.remove(removed);
+    restart();
+    
+    assertTrue(QueueStore.storedQueues(hz).contains(QUEUE));
+    IMap<QID, QMessage> map = queueMap();
+    assertEquals(0, map.size());
+    QueueStore store = QueueStore.get(hz, QUEUE);
+    assertNotNull(store);
+    assertEquals(written.size(), store.reload(map));
+    assertEquals(written.size(), map.size());
+    for(Entry<QID, String> e : written.entrySet())
+    {
+      assertEquals(e.getValue(), map.get(e.getKey()).getPayload().getPayloadAsUTF());
+    }
+  }
+  
+  @Test
+  public void testReloadKeepsLocalFiles() throws IOException
+  {
+    start();
+    write(100);
+    restart();
+    IMap<QID, QMessage> map = queueMap();
+    assertEquals(100, QueueStore.get(hz, QUEUE).reload(map));
+    //local files are kept by the reload
+    restart();
+    map = queueMap();
+    assertEquals(100, QueueStore.get(hz, QUEUE).reload(map));
+  }
+  
+  @Test
+  public void testDiscard() throws IOException
+  {
+    start();
+    write(100);
+    restart();
+    queueMap();
+    QueueStore.get(hz, QUEUE).discard();
+    restart();
+    IMap<QID, QMessage> map = queueMap();
+    assertEquals(0, QueueStore.get(hz, QUEUE).reload(map));
+    assertEquals(0, map.size());
+  }
+  
+  @Test
+  public void testWritesDuringMigration() throws IOException
+  {
+    start();
+    queueMap();
+    QueueStore store = QueueStore.get(hz, QUEUE);
+    QID stale = new QID(UUID.randomUUID());
+    int p = partitionOf(stale);
+    QID a = keyOf(p), b = keyOf(p), c = keyOf(p), d = keyOf(p);
+    //left from an earlier ownership
+    store.store(stale, message("stale"));
+    
+    store.beginMigration(p);
+    store.stage(p, a, message("a"));
+    store.stage(p, d, message("d"));
+    //put and consumed while the migrated entries are staged
+    store.store(b, message("b"));
+    store.store(c, message("c"));
+    store.delete(c);
+    store.delete(d);
+    store.onMigration(p);
+    
+    assertEquals("a", payload(store.load(a)));
+    assertEquals("b", payload(store.load(b)));
+    assertNull(store.load(c));
+    assertNull(store.load(d));
+    assertNull(store.load(stale));
+    //written through once replaced
+    store.delete(a);
+    assertNull(store.load(a));
+    
+    restart();
+    IMap<QID, QMessage> map = queueMap();
+    assertEquals(1, QueueStore.get(hz, QUEUE).reload(map));
+    assertEquals("b", payload(map.get(b)));
+  }
+  
+  @Test
+  public void testCancelledMigration() throws IOException
+  {
+    start();
+    queueMap();
+    QueueStore store = QueueStore.get(hz, QUEUE);
+    QID a = new QID(UUID.randomUUID());
+    int p = partitionOf(a);
+    QID b = keyOf(p);
+    store.store(a, message("a"));
+    
+    store.beginMigration(p);
+    store.stage(p, b, message("staged"));
+    store.store(b, message("b"));
+    store.delete(a);
+    store.cancelMigration(p);
+    
+    assertNull(store.load(a));
+    assertEquals("b", payload(store.load(b)));
+  }
+}
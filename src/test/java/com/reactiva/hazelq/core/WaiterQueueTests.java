@@ -0,0 +1,132 @@
+/* ============================================================================
+*
+* FILE: WaiterQueueTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WaiterQueueTests {
+
+  private final WaiterQueue waiters = new WaiterQueue();
+  
+  @Test
+  public void testSignalWithoutWaiters()
+  {
+    assertFalse(waiters.signal());
+    assertEquals(0, waiters.getHandoffCount());
+  }
+  
+  @Test
+  public void testAwaitTimesOut() throws InterruptedException
+  {
+    WaiterQueue.Waiter w = waiters.register();
+    try {
+      assertFalse(waiters.await(w, TimeUnit.MILLISECONDS.toNanos(20)));
+    } finally {
+      waiters.cancel(w);
+    }
+    assertFalse(waiters.signal());
+  }
+  
+  @Test
+  public void testSignalWakesOneWaiter() throws InterruptedException
+  {
+    final int n = 4;
+    final AtomicInteger woken = new AtomicInteger();
+    final CountDownLatch registered = new CountDownLatch(n);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          WaiterQueue.Waiter w = waiters.register();
+          registered.countDown();
+          try {
+            if(waiters.await(w, TimeUnit.SECONDS.toNanos(10)))
+              woken.incrementAndGet();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            waiters.cancel(w);
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    registered.await();
+    
+    assertTrue(waiters.signal());
+    long deadline = System.currentTimeMillis() + 5000;
+    while(woken.get() == 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+    Thread.sleep(50);
+    assertEquals(1, woken.get());
+    
+    waiters.signalAll();
+    for(Thread t : threads)
+      t.join(5000);
+    assertEquals(n, woken.get());
+    assertEquals(n, waiters.getHandoffCount());
+  }
+  
+  @Test
+  public void testSignalHandedOffInOrder() throws InterruptedException
+  {
+    WaiterQueue.Waiter first = waiters.register();
+    WaiterQueue.Waiter second = waiters.register();
+    assertTrue(waiters.signal());
+    assertTrue(waiters.await(first, TimeUnit.MILLISECONDS.toNanos(20)));
+    assertFalse(waiters.await(second, TimeUnit.MILLISECONDS.toNanos(20)));
+    waiters.cancel(first);
+    waiters.cancel(second);
+  }
+  
+  @Test
+  public void testUnconsumedSignalPassedOn() throws InterruptedException
+  {
+    WaiterQueue.Waiter first = waiters.register();
+    WaiterQueue.Waiter second = waiters.register();
+    assertTrue(waiters.signal());
+    //signalled, but gone without waiting
+    waiters.cancel(first);
+    assertTrue(waiters.await(second, TimeUnit.MILLISECONDS.toNanos(20)));
+    waiters.cancel(second);
+    assertFalse(waiters.signal());
+  }
+}
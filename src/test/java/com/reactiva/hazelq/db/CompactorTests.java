@@ -0,0 +1,244 @@
+/* ============================================================================
+*
+* FILE: CompactorTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompactorTests {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	/**
+	 * A record of a 3 char key and a 100 byte value is 116 bytes, so about 35 to a segment.
+	 */
+	private static final int SEGMENT_BYTES = 4096;
+	private static final int PER_SEGMENT = 35;
+	
+	private MappedFile open() throws IOException
+	{
+		return new MappedFile(tmp.getRoot().getPath(), "t", SEGMENT_BYTES, SyncPolicy.PER_BATCH, 0);
+	}
+	/**
+	 * Reopen without a clean index, so that it is rebuilt from the log.
+	 */
+	private MappedFile openUnclean() throws IOException
+	{
+		assertTrue(new File(tmp.getRoot(), "t" + HashIndex.IDX_FILE_SUFF).delete());
+		return open();
+	}
+	private static byte[] value(String key, int version)
+	{
+		byte[] b = new byte[100];
+		Arrays.fill(b, (byte) version);
+		b[0] = (byte) key.hashCode();
+		return b;
+	}
+	private static String key(char prefix, int i)
+	{
+		return String.format("%c%02d", prefix, i);
+	}
+	private static void write(MappedFile f, char prefix, int from, int to, int version) throws IOException
+	{
+		for (int i = from; i < to; i++) {
+			f.write(key(prefix, i), value(key(prefix, i), version));
+		}
+	}
+	private static void assertValues(MappedFile f, char prefix, int from, int to, int version) throws IOException
+	{
+		for (int i = from; i < to; i++) {
+			assertArrayEquals(key(prefix, i), value(key(prefix, i), version), f.read(key(prefix, i)));
+		}
+	}
+	private int segmentFiles()
+	{
+		return tmp.getRoot().list(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SegmentedLog.LOG_FILE_SUFF);
+			}
+		}).length;
+	}
+	
+	@Test
+	public void testLiveSurviveCompaction() throws IOException
+	{
+		MappedFile f = open();
+		try {
+			write(f, 'k', 0, 3 * PER_SEGMENT, 1);
+			//most of the first two segments dead
+			write(f, 'k', 0, 2 * PER_SEGMENT - 10, 2);
+			f.compact();
+			assertTrue(f.getCompactor().getCompactions() > 0);
+			assertTrue(f.getCompactor().getReclaimedBytes() > 0);
+			assertValues(f, 'k', 0, 2 * PER_SEGMENT - 10, 2);
+			assertValues(f, 'k', 2 * PER_SEGMENT - 10, 3 * PER_SEGMENT, 1);
+		} finally {
+			f.close();
+		}
+		f = open();
+		try {
+			assertEquals(3 * PER_SEGMENT, f.size());
+			assertValues(f, 'k', 0, 2 * PER_SEGMENT - 10, 2);
+			assertValues(f, 'k', 2 * PER_SEGMENT - 10, 3 * PER_SEGMENT, 1);
+		} finally {
+			f.close();
+		}
+		f = openUnclean();
+		try {
+			assertEquals(3 * PER_SEGMENT, f.size());
+			assertValues(f, 'k', 0, 2 * PER_SEGMENT - 10, 2);
+			assertValues(f, 'k', 2 * PER_SEGMENT - 10, 3 * PER_SEGMENT, 1);
+		} finally {
+			f.close();
+		}
+	}
+	
+	@Test
+	public void testTombstoneKeptOverOlderSegment() throws IOException
+	{
+		MappedFile f = open();
+		try {
+			f.write("a00", value("a00", 1));
+			//the first segment stays live
+			write(f, 'f', 0, PER_SEGMENT, 1);
+			f.remove("a00");
+			write(f, 'g', 0, PER_SEGMENT, 1);
+			//the second segment, holding the tombstone, now dead
+			write(f, 'g', 0, PER_SEGMENT, 2);
+			write(f, 'h', 0, PER_SEGMENT, 1);
+			f.compact();
+			assertEquals(1, f.getCompactor().getCompactions());
+			assertNull(f.read("a00"));
+		} finally {
+			f.close();
+		}
+		f = openUnclean();
+		try {
+			assertNull(f.read("a00"));
+			assertFalse(f.contains("a00"));
+			assertValues(f, 'f', 0, PER_SEGMENT, 1);
+			assertValues(f, 'g', 0, PER_SEGMENT, 2);
+		} finally {
+			f.close();
+		}
+	}
+	
+	@Test
+	public void testSupersededDuringCopy() throws Exception
+	{
+		final MappedFile f = open();
+		try {
+			write(f, 's', 0, PER_SEGMENT, 1);
+			write(f, 's', PER_SEGMENT / 2, PER_SEGMENT, 2);
+			write(f, 'h', 0, PER_SEGMENT, 1);
+			//about a second to copy the live half of the first segment
+			final Compactor slow = new Compactor(f, 60000, 0.5, 2000);
+			final AtomicReference<Exception> error = new AtomicReference<>();
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						slow.compact();
+					} catch (Exception e) {
+						error.set(e);
+					}
+				}
+			};
+			t.start();
+			while(slow.getCopiedBytes() == 0 && t.isAlive())
+				Thread.sleep(1);
+			//s00 is the first record copied
+			f.write("s00", value("s00", 3));
+			assertEquals(0, slow.getCompactions());
+			t.join(10000);
+			assertNull(error.get());
+			assertEquals(1, slow.getCompactions());
+			assertArrayEquals(value("s00", 3), f.read("s00"));
+			assertValues(f, 's', 1, PER_SEGMENT / 2, 1);
+			assertValues(f, 's', PER_SEGMENT / 2, PER_SEGMENT, 2);
+		} finally {
+			f.close();
+		}
+		MappedFile r = open();
+		try {
+			assertArrayEquals(value("s00", 3), r.read("s00"));
+		} finally {
+			r.close();
+		}
+		r = openUnclean();
+		try {
+			assertArrayEquals(value("s00", 3), r.read("s00"));
+			assertValues(r, 's', 1, PER_SEGMENT / 2, 1);
+		} finally {
+			r.close();
+		}
+	}
+	
+	@Test
+	public void testDeadSegmentDeleted() throws IOException
+	{
+		MappedFile f = open();
+		try {
+			write(f, 'd', 0, PER_SEGMENT, 1);
+			write(f, 'd', 0, PER_SEGMENT, 2);
+			write(f, 'h', 0, PER_SEGMENT, 1);
+			int before = segmentFiles();
+			int oldest = f.dataLog().oldestSegment();
+			f.compact();
+			assertTrue(segmentFiles() < before);
+			assertTrue(f.dataLog().oldestSegment() > oldest);
+			assertValues(f, 'd', 0, PER_SEGMENT, 2);
+		} finally {
+			f.close();
+		}
+		f = openUnclean();
+		try {
+			assertEquals(2 * PER_SEGMENT, f.size());
+			assertValues(f, 'd', 0, PER_SEGMENT, 2);
+		} finally {
+			f.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/* ============================================================================
+*
+* FILE: GroupCommitTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.reactiva.hazelq.db.GroupCommit.Write;
+
+public class GroupCommitTests {
+
+	/**
+	 * Echoes each value, recording the batch sizes. The first batch waits on the gate.
+	 */
+	private static class Recorder extends GroupCommit
+	{
+		final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch gate;
+		final CountDownLatch entered = new CountDownLatch(1);
+		Recorder(int maxBatch, CountDownLatch gate) {
+			super(maxBatch);
+			this.gate = gate;
+		}
+		@Override
+		protected void commit(List<Write> batch) {
+			batches.add(batch.size());
+			entered.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(Write w : batch)
+			{
+				if("bad".equals(w.keys[0]))
+					w.setError(new IOException("bad"));
+				else
+					w.setResult(w.values[0]);
+				w.done();
+			}
+		}
+	}
+	private static byte[] bytes(String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Test
+	public void testIdleWriterCommitsAlone() throws IOException
+	{
+		Recorder r = new Recorder(4, new CountDownLatch(0));
+		assertArrayEquals(bytes("a"), r.execute(new Write("k", bytes("a"))));
+		assertArrayEquals(bytes("b"), r.execute(new Write("k", bytes("b"))));
+		Write w = r.submit(new Write("k", bytes("c")));
+		assertTrue(w.isDone());
+		assertArrayEquals(bytes("c"), GroupCommit.get(w));
+		assertEquals(Arrays.asList(1, 1, 1), r.batches);
+	}
+	
+	@Test
+	public void testWaitingWritersBatched() throws Exception
+	{
+		final CountDownLatch gate = new CountDownLatch(1);
+		final Recorder r = new Recorder(4, gate);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> writers = new ArrayList<>();
+		for (int i = 0; i < 9; i++) {
+			final String v = "v" + i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						byte[] b = r.execute(new Write("k", bytes(v)));
+						if(!Arrays.equals(bytes(v), b))
+							errors.add(new AssertionError(v));
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			writers.add(t);
+			t.start();
+			if(i == 0)
+				assertTrue(r.entered.await(5, TimeUnit.SECONDS));
+		}
+		//the leader is held in commit, so wait for the rest to queue up behind it
+		long until = System.currentTimeMillis() + 5000;
+		for(Thread t : writers.subList(1, writers.size()))
+		{
+			while(t.getState() != Thread.State.WAITING && System.currentTimeMillis() < until)
+				Thread.sleep(10);
+		}
+		gate.countDown();
+		for(Thread t : writers)
+		{
+			t.join(5000);
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		//one leader drains the 8 waiting, at most 4 a batch
+		assertEquals(Arrays.asList(1, 4, 4), r.batches);
+	}
+	
+	@Test
+	public void testErrorsPerRequest() throws IOException
+	{
+		Recorder r = new Recorder(4, new CountDownLatch(0));
+		try {
+			r.execute(new Write("bad", bytes("x")));
+			fail();
+		} catch (IOException e) {
+			assertEquals("bad", e.getMessage());
+		}
+		assertArrayEquals(bytes("y"), r.execute(new Write("k", bytes("y"))));
+	}
+}
@@ -0,0 +1,175 @@
+/* ============================================================================
+*
+* FILE: HashIndexTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HashIndexTests {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	/**
+	 * Stands in for the log: the key held at each address.
+	 */
+	private final Map<Long, String> records = new HashMap<>();
+	private final HashIndex.KeyMatcher matcher = new HashIndex.KeyMatcher() {
+		
+		@Override
+		public boolean matches(long address, byte[] key) {
+			return new String(key, StandardCharsets.UTF_8).equals(records.get(address));
+		}
+	};
+	
+	private File file() 
+	{
+		return new File(tmp.getRoot(), "t" + HashIndex.IDX_FILE_SUFF);
+	}
+	private static byte[] key(int i)
+	{
+		return ("key-" + i).getBytes(StandardCharsets.UTF_8);
+	}
+	private void put(HashIndex idx, int i, long address) throws IOException
+	{
+		records.put(address, "key-" + i);
+		idx.put(key(i), address);
+	}
+	
+	@Test
+	public void testResizeKeepsEntries() throws IOException
+	{
+		try(HashIndex idx = new HashIndex(file(), matcher))
+		{
+			long initial = file().length();
+			int n = 5000;
+			for (int i = 0; i < n; i++) {
+				put(idx, i, i * 100L);
+			}
+			assertEquals(n, idx.size());
+			assertTrue(file().length() > initial);
+			for (int i = 0; i < n; i++) {
+				assertEquals(i * 100L, idx.get(key(i)));
+			}
+			assertEquals(HashIndex.NOT_FOUND, idx.get(key(n)));
+		}
+	}
+	
+	@Test
+	public void testRehashDropsDeleted() throws IOException
+	{
+		try(HashIndex idx = new HashIndex(file(), matcher))
+		{
+			long address = 0;
+			//churn well past the capacity, with few live keys at any time
+			for (int i = 0; i < 4000; i++) {
+				put(idx, i, address++);
+				if(i >= 100)
+					assertEquals(i - 100, idx.remove(key(i - 100)));
+			}
+			assertEquals(100, idx.size());
+			for (int i = 3900; i < 4000; i++) {
+				assertEquals(i, idx.get(key(i)));
+			}
+			assertEquals(HashIndex.NOT_FOUND, idx.get(key(0)));
+		}
+	}
+	
+	@Test
+	public void testPutReplacesAddress() throws IOException
+	{
+		try(HashIndex idx = new HashIndex(file(), matcher))
+		{
+			put(idx, 1, 10);
+			records.put(20L, "key-1");
+			assertEquals(10, idx.put(key(1), 20));
+			assertEquals(20, idx.get(key(1)));
+			assertEquals(1, idx.size());
+		}
+	}
+	
+	@Test
+	public void testRelocate() throws IOException
+	{
+		try(HashIndex idx = new HashIndex(file(), matcher))
+		{
+			for (int i = 0; i < 1000; i++) {
+				put(idx, i, i);
+			}
+			//the record has been copied, and the old address no longer holds the key
+			records.remove(7L);
+			records.put(5007L, "key-7");
+			assertTrue(idx.relocate(key(7), 7, 5007));
+			assertEquals(5007, idx.get(key(7)));
+			
+			//superseded meanwhile, so not moved
+			assertFalse(idx.relocate(key(8), 9999, 5008));
+			assertEquals(8, idx.get(key(8)));
+			
+			assertFalse(idx.relocate(key(2000), 2000, 6000));
+			assertEquals(1000, idx.size());
+		}
+	}
+	
+	@Test
+	public void testReopenClean() throws IOException
+	{
+		HashIndex idx = new HashIndex(file(), matcher);
+		for (int i = 0; i < 2000; i++) {
+			put(idx, i, i);
+		}
+		idx.close(12345);
+		
+		idx = new HashIndex(file(), matcher);
+		try {
+			assertTrue(idx.validate(12345));
+			assertEquals(2000, idx.size());
+			assertEquals(1500, idx.get(key(1500)));
+		} finally {
+			idx.close();
+		}
+		//not closed cleanly since
+		idx = new HashIndex(file(), matcher);
+		try {
+			assertFalse(idx.validate(12345));
+		} finally {
+			idx.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/* ============================================================================
+*
+* FILE: SegmentedLogTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedLogTests {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private static final int SEGMENT_BYTES = 4096;
+	
+	private SegmentedLog open() throws IOException
+	{
+		return new SegmentedLog(tmp.getRoot(), "t", SEGMENT_BYTES, SyncPolicy.PER_WRITE, 0);
+	}
+	private static byte[] bytes(String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	private static List<String> keys(SegmentedLog log)
+	{
+		final List<String> keys = new ArrayList<>();
+		log.scan(new SegmentedLog.RecordVisitor() {
+			
+			@Override
+			public void visit(long address, byte[] key, int valueLen) {
+				keys.add(new String(key, StandardCharsets.UTF_8));
+			}
+		});
+		return keys;
+	}
+	private File segmentFile(int id)
+	{
+		return new File(tmp.getRoot(), String.format("t.%08d%s", id, SegmentedLog.LOG_FILE_SUFF));
+	}
+	private void overwrite(long address, int delta, byte[] b) throws IOException
+	{
+		try(RandomAccessFile raf = new RandomAccessFile(segmentFile(SegmentedLog.segmentOf(address)), "rw"))
+		{
+			raf.seek(SegmentedLog.offsetOf(address) + delta);
+			raf.write(b);
+		}
+	}
+	
+	@Test
+	public void testReopen() throws IOException
+	{
+		long a1, end;
+		try(SegmentedLog log = open())
+		{
+			a1 = log.append(bytes("k1"), bytes("v1"));
+			log.append(bytes("k2"), null);
+			end = log.endAddress();
+		}
+		try(SegmentedLog log = open())
+		{
+			assertEquals(end, log.endAddress());
+			assertEquals(2, keys(log).size());
+			assertArrayEquals(bytes("v1"), log.readValue(a1));
+		}
+	}
+	
+	@Test
+	public void testTornValueDiscarded() throws IOException
+	{
+		long a3;
+		try(SegmentedLog log = open())
+		{
+			log.append(bytes("k1"), bytes("v1"));
+			log.append(bytes("k2"), bytes("v2"));
+			a3 = log.append(bytes("k3"), bytes("value three"));
+		}
+		//the value of the last record was not fully written
+		overwrite(a3, SegmentedLog.HEADER_LEN + 2 + 6, new byte[5]);
+		
+		try(SegmentedLog log = open())
+		{
+			assertEquals(2, keys(log).size());
+			assertEquals(a3, log.endAddress());
+			//the next append reuses the space of the torn record
+			assertEquals(a3, log.append(bytes("k4"), bytes("v4")));
+		}
+		try(SegmentedLog log = open())
+		{
+			List<String> keys = keys(log);
+			assertEquals(3, keys.size());
+			assertEquals("k4", keys.get(2));
+			assertArrayEquals(bytes("v4"), log.readValue(a3));
+		}
+	}
+	
+	@Test
+	public void testTornHeaderDiscarded() throws IOException
+	{
+		long end;
+		try(SegmentedLog log = open())
+		{
+			log.append(bytes("k1"), bytes("v1"));
+			end = log.endAddress();
+		}
+		//a header with lengths past the end of the segment
+		byte[] header = new byte[SegmentedLog.HEADER_LEN];
+		header[0] = SegmentedLog.MAGIC;
+		header[5] = 0x7F;
+		overwrite(end, 0, header);
+		
+		try(SegmentedLog log = open())
+		{
+			assertEquals(1, keys(log).size());
+			assertEquals(end, log.endAddress());
+		}
+	}
+	
+	@Test
+	public void testTornRecordInRolledSegment() throws IOException
+	{
+		byte[] value = new byte[1500];
+		long last;
+		try(SegmentedLog log = open())
+		{
+			for (int i = 0; i < 4; i++) {
+				log.append(bytes("k" + i), value);
+			}
+			last = log.append(bytes("k4"), value);
+		}
+		assertEquals(2, SegmentedLog.segmentOf(last));
+		overwrite(last, SegmentedLog.HEADER_LEN + 2, new byte[]{1, 2, 3});
+		
+		try(SegmentedLog log = open())
+		{
+			assertEquals(4, keys(log).size());
+			assertEquals(last, log.endAddress());
+		}
+	}
+}
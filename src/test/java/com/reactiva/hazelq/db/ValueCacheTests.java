@@ -0,0 +1,148 @@
+/* ============================================================================
+*
+* FILE: ValueCacheTests.java
+*
+The MIT License (MIT)
+
+Copyright (c) 2016 Sutanu Dalui
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*
+* ============================================================================
+*/
+package com.reactiva.hazelq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ValueCacheTests {
+
+	/**
+	 * 100 value bytes, 2 char key and the overhead make 200 bytes per entry, so 5 fit.
+	 */
+	private static final int BUDGET = 1000;
+	
+	private static byte[] value(int i)
+	{
+		byte[] b = new byte[100];
+		b[0] = (byte) i;
+		return b;
+	}
+	
+	@Test
+	public void testEvictsToBudget()
+	{
+		ValueCache c = new ValueCache(BUDGET, 1, false);
+		for (int i = 0; i < 10; i++) {
+			c.put("k" + i, value(i));
+		}
+		assertEquals(5, c.size());
+		assertEquals(BUDGET, c.getBytes());
+		assertEquals(5, c.getEvictions());
+		for (int i = 5; i < 10; i++) {
+			assertEquals(i, c.get("k" + i).get(0));
+		}
+	}
+	
+	@Test
+	public void testReferencedSurviveEviction()
+	{
+		ValueCache c = new ValueCache(BUDGET, 1, false);
+		for (int i = 0; i < 5; i++) {
+			c.put("k" + i, value(i));
+		}
+		assertNotNull(c.get("k0"));
+		c.put("k5", value(5));
+		
+		//the hand passes k0, clearing its bit, and takes k1
+		assertNotNull(c.get("k0"));
+		assertNull(c.get("k1"));
+		assertEquals(5, c.size());
+	}
+	
+	@Test
+	public void testInvalidateAndReplace()
+	{
+		ValueCache c = new ValueCache(BUDGET, 1, false);
+		c.put("k0", value(0));
+		c.put("k0", value(7));
+		assertEquals(1, c.size());
+		assertEquals(200, c.getBytes());
+		assertEquals(7, c.get("k0").get(0));
+		
+		c.invalidate("k0");
+		assertNull(c.get("k0"));
+		assertEquals(0, c.getBytes());
+		assertEquals(0, c.getEvictions());
+	}
+	
+	@Test
+	public void testOversizeNotCached()
+	{
+		ValueCache c = new ValueCache(BUDGET, 1, false);
+		ByteBuffer b = c.put("k0", new byte[BUDGET]);
+		assertEquals(BUDGET, b.remaining());
+		assertNull(c.get("k0"));
+		assertEquals(0, c.size());
+		
+		c = new ValueCache(0, 1, false);
+		assertFalse(c.isEnabled());
+		c.put("k0", value(0));
+		assertNull(c.get("k0"));
+	}
+	
+	@Test
+	public void testCachedCopyReadOnly()
+	{
+		ValueCache c = new ValueCache(BUDGET, 4, true);
+		byte[] v = value(1);
+		ByteBuffer b = c.put("k0", v);
+		v[0] = 9;
+		assertTrue(b.isReadOnly());
+		assertEquals(1, b.get(0));
+		
+		b = c.get("k0");
+		assertTrue(b.isDirect());
+		assertEquals(1, b.get(0));
+		b.position(50);
+		assertEquals(0, c.get("k0").position());
+		assertEquals(2, c.getHits());
+	}
+	
+	@Test
+	public void testClear()
+	{
+		ValueCache c = new ValueCache(BUDGET, 4, false);
+		for (int i = 0; i < 3; i++) {
+			c.put("k" + i, value(i));
+		}
+		c.clear();
+		assertEquals(0, c.size());
+		assertEquals(0, c.getBytes());
+		assertNull(c.get("k0"));
+		assertEquals(1, c.getMisses());
+	}
+}